@@ -0,0 +1,6 @@
+// Which Accelerator a scene traces rays with. BVH suits any layout, while Grid is faster for
+// many small entities spread evenly through the scene, such as a lattice. Auto picks Grid
+// for scenes that look like that and BVH otherwise.
+public enum Acceleration {
+    Auto, BVH, Grid;
+}
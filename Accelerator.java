@@ -0,0 +1,18 @@
+// A structure over the entities of a scene that finds what rays hit without testing every
+// entity. Entities are identified by their index in the list the structure was built from.
+public interface Accelerator {
+    // Finds the closest entity hit by the context's ray and stores it and its distance in
+    // the context. Returns false if the ray collides with nothing.
+    boolean castRay(TraceContext ctx);
+
+    // Returns true if any opaque entity lies along the context's ray within the given
+    // distance. The context's hit is left untouched.
+    boolean occluded(TraceContext ctx, double maxDistance);
+
+    // Finds the closest entity hit by every ray of a packet.
+    void castPacket(RayPacket packet);
+
+    // Updates the structure after the entities at the given indices have moved or changed
+    // size.
+    void refit(int[] moved);
+}
@@ -0,0 +1,147 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Camera and entity motion over a sequence of frames, read from an animation file in the
+// same section format as scene files:
+//
+//     animation:
+//         frames: 120
+//     camera:
+//         frame: 0
+//         position: (4, 4, 4)
+//         direction: (-1, -1, -1)
+//         fov: 90
+//     camera:
+//         frame: 119
+//         position: (-4, 4, 4)
+//     entity:
+//         index: 2
+//         frame: 60
+//         position: (2, 0, 1)
+//
+// Values are interpolated linearly between keyframes and hold before the first and after
+// the last. Values left out of a camera keyframe carry over from the one before it, or from
+// the scene's camera for the first. Entities are numbered from 0 in the order they appear in
+// the scene file, also when it was converted to a binary scene. Only binary scenes written
+// before format version 6 list every sphere before every cube.
+public final class Animation {
+    public int frames = 1;
+
+    static class Key {
+        int frame;
+    }
+
+    static final class CameraKey extends Key {
+        Vector3 position;
+        Vector3 direction;
+        double fov = Double.NaN;
+        double size = Double.NaN;
+    }
+
+    static final class EntityKey extends Key {
+        Vector3 position;
+    }
+
+    private static final Comparator<Key> BY_FRAME = new Comparator<Key>() {
+        @Override
+        public int compare(Key a, Key b) {
+            return Integer.compare(a.frame, b.frame);
+        }
+    };
+
+    final List<CameraKey> cameraKeys = new ArrayList<CameraKey>();
+    // Keyframes of each animated entity by index.
+    final Map<Integer, List<EntityKey>> entityKeys = new TreeMap<Integer, List<EntityKey>>();
+
+    // Reads an animation file for a scene.
+    public Animation(Scene scene, String file) throws ParsingException {
+        SceneParser.parseAnimation(this, file);
+        if (frames < 1) {
+            throw new ParsingException("An animation must have at least one frame!");
+        }
+        Collections.sort(cameraKeys, BY_FRAME);
+        Camera camera = scene.camera;
+        Vector3 position = camera.position;
+        Vector3 direction = camera.direction;
+        double fov = camera.fov;
+        double size = camera.size;
+        for (CameraKey key : cameraKeys) {
+            position = key.position = key.position != null ? key.position : position;
+            direction = key.direction = key.direction != null ? key.direction : direction;
+            fov = key.fov = !Double.isNaN(key.fov) ? key.fov : fov;
+            size = key.size = !Double.isNaN(key.size) ? key.size : size;
+        }
+        for (Map.Entry<Integer, List<EntityKey>> entry : entityKeys.entrySet()) {
+            if (entry.getKey() < 0 || entry.getKey() >= scene.entities.size()) {
+                throw new ParsingException("No entity with index " + entry.getKey() + "!");
+            }
+            Collections.sort(entry.getValue(), BY_FRAME);
+        }
+    }
+
+    // Moves the scene's camera and entities to where they are at a frame. Returns the
+    // indices of the entities that moved, which the scene's acceleration structures still
+    // have to be told about.
+    public int[] apply(Scene scene, int frame) {
+        if (!cameraKeys.isEmpty()) {
+            int i = segment(cameraKeys, frame);
+            CameraKey a = cameraKeys.get(i);
+            CameraKey b = cameraKeys.get(Math.min(i + 1, cameraKeys.size() - 1));
+            double t = weight(a.frame, b.frame, frame);
+            scene.camera = new Camera(
+                lerp(a.position, b.position, t),
+                lerp(a.direction, b.direction, t),
+                a.fov + (b.fov - a.fov) * t,
+                a.size + (b.size - a.size) * t
+            );
+        }
+        int[] moved = new int[entityKeys.size()];
+        int count = 0;
+        for (Map.Entry<Integer, List<EntityKey>> entry : entityKeys.entrySet()) {
+            List<EntityKey> keys = entry.getValue();
+            int i = segment(keys, frame);
+            EntityKey a = keys.get(i);
+            EntityKey b = keys.get(Math.min(i + 1, keys.size() - 1));
+            Vector3 position = lerp(a.position, b.position, weight(a.frame, b.frame, frame));
+            Entity entity = scene.entities.get(entry.getKey());
+            if (position.x() != entity.position.x() || position.y() != entity.position.y() ||
+                    position.z() != entity.position.z()) {
+                entity.position = position;
+                moved[count++] = entry.getKey();
+            }
+        }
+        int[] result = new int[count];
+        System.arraycopy(moved, 0, result, 0, count);
+        return result;
+    }
+
+    // Returns the index of the last keyframe at or before the frame, or 0 if the frame comes
+    // before all of them.
+    private static int segment(List<? extends Key> keys, int frame) {
+        int i = 0;
+        while (i + 1 < keys.size() && keys.get(i + 1).frame <= frame) {
+            i++;
+        }
+        return i;
+    }
+
+    // How far a frame lies between two keyframes, from 0 to 1.
+    private static double weight(int from, int to, int frame) {
+        if (to <= from) {
+            return 0;
+        }
+        return Math.min(Math.max((double)(frame - from) / (to - from), 0), 1);
+    }
+
+    private static Vector3 lerp(Vector3 a, Vector3 b, double t) {
+        return new Vector3(
+            a.x() + (b.x() - a.x()) * t,
+            a.y() + (b.y() - a.y()) * t,
+            a.z() + (b.z() - a.z()) * t
+        );
+    }
+}
@@ -0,0 +1,61 @@
+// Adaptive anti-aliasing shared by the renderers. A frame is first rendered with one sample
+// through the center of each pixel. Pixels whose color differs from a neighbour's by more
+// than a threshold, or whose ray hit a different entity than a neighbour's, lie on an edge
+// and are rendered again from a jittered GRID x GRID grid of samples. Most of the frame
+// keeps its single sample, so edges look like full supersampling for a fraction of the rays.
+public final class Antialiasing {
+    // Edge pixels are rendered from GRID * GRID samples.
+    public static final int GRID = 4;
+    // Default largest difference in any 0-255 color channel between neighbouring pixels
+    // that doesn't count as an edge.
+    public static final int DEFAULT_THRESHOLD = 16;
+
+    private Antialiasing() {
+    }
+
+    // Returns true if two colors differ by more than the threshold in any channel.
+    public static boolean differs(int a, int b, int threshold) {
+        return Math.abs(((a >> 16) & 0xff) - ((b >> 16) & 0xff)) > threshold ||
+            Math.abs(((a >> 8) & 0xff) - ((b >> 8) & 0xff)) > threshold ||
+            Math.abs((a & 0xff) - (b & 0xff)) > threshold;
+    }
+
+    // Renders a pixel of a width by height image from a jittered grid of samples and returns
+    // their average color. The jitter is a hash of the pixel and sample, so a pixel always
+    // gets the same samples and still frames don't shimmer between passes.
+    public static int supersample(Scene scene, int x, int y, int width, int height, TraceContext ctx) {
+        double aspectRatio = (double)width / height;
+        double spread = scene.camera.getSampleSpread(width) / GRID;
+        int r = 0;
+        int g = 0;
+        int b = 0;
+        for (int i = 0; i < GRID * GRID; i++) {
+            int hash = hash(x, y, i);
+            double jx = (hash & 0xffff) / 65536.0;
+            double jy = (hash >>> 16) / 65536.0;
+            scene.camera.getRay(
+                (x + (i % GRID + jx) / GRID) / width,
+                1 - (y + (i / GRID + jy) / GRID) / height,
+                aspectRatio,
+                ctx
+            );
+            ctx.spread = spread;
+            int color = scene.getRayColor(ctx);
+            r += (color >> 16) & 0xff;
+            g += (color >> 8) & 0xff;
+            b += color & 0xff;
+        }
+        int n = GRID * GRID;
+        return (r + n / 2) / n << 16 | (g + n / 2) / n << 8 | (b + n / 2) / n;
+    }
+
+    private static int hash(int x, int y, int i) {
+        int h = x * 0x27d4eb2d ^ y * 0x165667b1 ^ i * 0x61c88647;
+        h ^= h >>> 15;
+        h *= 0x2c1b3c6d;
+        h ^= h >>> 12;
+        h *= 0x297a2d39;
+        h ^= h >>> 15;
+        return h;
+    }
+}
@@ -0,0 +1,484 @@
+import java.util.Arrays;
+import java.util.List;
+
+// Bounding volume hierarchy over the entities of a scene. The tree is built once with a
+// binned surface area heuristic and stored in flat arrays so that traversal doesn't have
+// to chase pointers between node objects.
+public final class BVH implements Accelerator {
+    private static final int BINS = 16;
+    private static final int MAX_LEAF_SIZE = 4;
+    // Relative costs of visiting a node and intersecting an entity, used by the heuristic.
+    private static final double TRAVERSAL_COST = 1;
+    private static final double INTERSECTION_COST = 1;
+
+    // Entities reordered so that every leaf references a contiguous range, and their
+    // geometry packed in the same order for the leaf tests.
+    private Entity[] entities;
+    private Primitives primitives;
+    // Six doubles per node: min x, y, z followed by max x, y, z.
+    private double[] bounds;
+    // For leaves, the index of the first entity. For interior nodes, the index of the
+    // left child. The right child always immediately follows the left child.
+    private int[] first;
+    // Number of entities in a leaf, or zero for interior nodes.
+    private int[] count;
+    private int nodeCount;
+    // Parent of each node, or -1 for the root, and for each entity of the list the tree was
+    // built from, the leaf holding it and its position in entities. Used to refit the tree
+    // after entities move.
+    private int[] parent;
+    private int[] leaves;
+    private int[] slots;
+
+    // Per-entity bounds and centroids used only while building.
+    private double[] entityBounds;
+    private double[] centroids;
+    private int[] indices;
+
+    public BVH(List<Entity> list) {
+        int n = list.size();
+        entities = new Entity[n];
+        entityBounds = new double[n * 6];
+        centroids = new double[n * 3];
+        indices = new int[n];
+        for (int i = 0; i < n; i++) {
+            Entity entity = list.get(i);
+            Vector3 min = entity.getBoundsMin();
+            Vector3 max = entity.getBoundsMax();
+            entityBounds[i * 6] = min.x();
+            entityBounds[i * 6 + 1] = min.y();
+            entityBounds[i * 6 + 2] = min.z();
+            entityBounds[i * 6 + 3] = max.x();
+            entityBounds[i * 6 + 4] = max.y();
+            entityBounds[i * 6 + 5] = max.z();
+            centroids[i * 3] = (min.x() + max.x()) / 2;
+            centroids[i * 3 + 1] = (min.y() + max.y()) / 2;
+            centroids[i * 3 + 2] = (min.z() + max.z()) / 2;
+            indices[i] = i;
+        }
+        int maxNodes = Math.max(1, 2 * n - 1);
+        bounds = new double[maxNodes * 6];
+        first = new int[maxNodes];
+        count = new int[maxNodes];
+        parent = new int[maxNodes];
+        parent[0] = -1;
+        if (n > 0) {
+            nodeCount = 1;
+            build(0, 0, n);
+        }
+        slots = new int[n];
+        leaves = new int[n];
+        for (int i = 0; i < n; i++) {
+            entities[i] = list.get(indices[i]);
+            slots[indices[i]] = i;
+        }
+        for (int node = 0; node < nodeCount; node++) {
+            for (int i = first[node]; i < first[node] + count[node]; i++) {
+                leaves[indices[i]] = node;
+            }
+        }
+        primitives = new Primitives(entities);
+        entityBounds = null;
+        centroids = null;
+        indices = null;
+    }
+
+    // Finds the closest entity hit by the context's ray and stores it and its distance in
+    // the context. Returns false if the ray collides with nothing.
+    public boolean castRay(TraceContext ctx) {
+        ctx.entity = null;
+        ctx.distance = Double.POSITIVE_INFINITY;
+        if (nodeCount == 0) {
+            return false;
+        }
+        double ox = ctx.ox;
+        double oy = ctx.oy;
+        double oz = ctx.oz;
+        double dx = ctx.dx;
+        double dy = ctx.dy;
+        double dz = ctx.dz;
+        double ix = 1 / dx;
+        double iy = 1 / dy;
+        double iz = 1 / dz;
+        Primitives primitives = this.primitives;
+        int closest = -1;
+        double closestDistance = Double.POSITIVE_INFINITY;
+        long tests = 0;
+        int[] stack = ctx.stack;
+        int sp = 0;
+        stack[sp++] = 0;
+        while (sp > 0) {
+            int node = stack[--sp];
+            if (enter(node, ox, oy, oz, ix, iy, iz) >= closestDistance) {
+                continue;
+            }
+            if (count[node] > 0) {
+                int end = first[node] + count[node];
+                tests += count[node];
+                for (int i = first[node]; i < end; i++) {
+                    double distance = primitives.intersect(i, ox, oy, oz, dx, dy, dz, ix, iy, iz);
+                    if (distance < closestDistance) {
+                        closest = i;
+                        closestDistance = distance;
+                    }
+                }
+                continue;
+            }
+            // Visit the nearer child first so that the farther one can usually be culled.
+            int left = first[node];
+            int right = left + 1;
+            double tl = enter(left, ox, oy, oz, ix, iy, iz);
+            double tr = enter(right, ox, oy, oz, ix, iy, iz);
+            if (sp + 2 > stack.length) {
+                stack = ctx.stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            if (tl <= tr) {
+                if (tr < closestDistance) {
+                    stack[sp++] = right;
+                }
+                if (tl < closestDistance) {
+                    stack[sp++] = left;
+                }
+            } else {
+                if (tl < closestDistance) {
+                    stack[sp++] = left;
+                }
+                if (tr < closestDistance) {
+                    stack[sp++] = right;
+                }
+            }
+        }
+        ctx.intersectionTests += tests;
+        if (closest < 0) {
+            return false;
+        }
+        ctx.entity = entities[closest];
+        ctx.distance = closestDistance;
+        return true;
+    }
+
+    // Returns true if any opaque entity lies along the context's ray within the given
+    // distance. Transparent entities let light through, so they are skipped. Traversal
+    // stops at the first blocker found, in whatever order, and the context's hit is left
+    // untouched.
+    public boolean occluded(TraceContext ctx, double maxDistance) {
+        if (nodeCount == 0) {
+            return false;
+        }
+        double ox = ctx.ox;
+        double oy = ctx.oy;
+        double oz = ctx.oz;
+        double dx = ctx.dx;
+        double dy = ctx.dy;
+        double dz = ctx.dz;
+        double ix = 1 / dx;
+        double iy = 1 / dy;
+        double iz = 1 / dz;
+        Primitives primitives = this.primitives;
+        long tests = 0;
+        int[] stack = ctx.stack;
+        int sp = 0;
+        stack[sp++] = 0;
+        while (sp > 0) {
+            int node = stack[--sp];
+            if (enter(node, ox, oy, oz, ix, iy, iz) > maxDistance) {
+                continue;
+            }
+            if (count[node] > 0) {
+                int end = first[node] + count[node];
+                for (int i = first[node]; i < end; i++) {
+                    if (!primitives.isTransparent(i) && primitives.occludes(i, ox, oy, oz, dx, dy, dz, ix, iy, iz, maxDistance)) {
+                        ctx.intersectionTests += tests + i - first[node] + 1;
+                        return true;
+                    }
+                }
+                tests += count[node];
+                continue;
+            }
+            if (sp + 2 > stack.length) {
+                stack = ctx.stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            stack[sp++] = first[node] + 1;
+            stack[sp++] = first[node];
+        }
+        ctx.intersectionTests += tests;
+        return false;
+    }
+
+    // Finds the closest entity hit by every ray of a packet. A node is visited if any ray
+    // in the packet enters it before reaching its own closest hit so far, and the rays
+    // are then tested against the node's entities together.
+    public void castPacket(RayPacket p) {
+        int n = p.count;
+        for (int i = 0; i < n; i++) {
+            p.entity[i] = null;
+            p.distance[i] = Double.POSITIVE_INFINITY;
+        }
+        if (nodeCount == 0 || n == 0) {
+            return;
+        }
+        long tests = 0;
+        int[] stack = p.stack;
+        int sp = 0;
+        stack[sp++] = 0;
+        while (sp > 0) {
+            int node = stack[--sp];
+            boolean any = p.vectors ? VectorPacket.enter(p, bounds, node * 6) : p.enter(bounds, node * 6);
+            if (!any) {
+                continue;
+            }
+            if (count[node] > 0) {
+                int end = first[node] + count[node];
+                for (int e = first[node]; e < end; e++) {
+                    if (p.vectors && primitives.kinds[e] != Primitives.OTHER) {
+                        tests += VectorPacket.intersect(p, primitives, e, entities[e]);
+                    } else {
+                        tests += p.intersect(primitives, e, entities[e]);
+                    }
+                }
+                continue;
+            }
+            // Visit the child nearer along the first ray's direction first.
+            int left = first[node];
+            int right = left + 1;
+            int l = left * 6;
+            int r = right * 6;
+            double towardsRight =
+                (bounds[r] + bounds[r + 3] - bounds[l] - bounds[l + 3]) * p.dx[0] +
+                (bounds[r + 1] + bounds[r + 4] - bounds[l + 1] - bounds[l + 4]) * p.dy[0] +
+                (bounds[r + 2] + bounds[r + 5] - bounds[l + 2] - bounds[l + 5]) * p.dz[0];
+            if (sp + 2 > stack.length) {
+                stack = p.stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            if (towardsRight > 0) {
+                stack[sp++] = right;
+                stack[sp++] = left;
+            } else {
+                stack[sp++] = left;
+                stack[sp++] = right;
+            }
+        }
+        TraceContext.get().intersectionTests += tests;
+    }
+
+    // Updates the tree after the entities at the given indices of the list it was built
+    // from have moved or changed size. The tree keeps its structure and only the bounds of
+    // the nodes above the moved entities grow or shrink, which is much cheaper than building
+    // a new tree but gets slower to traverse the further entities move from where they were.
+    public void refit(int[] moved) {
+        for (int index : moved) {
+            primitives.update(slots[index]);
+        }
+        for (int index : moved) {
+            int node = leaves[index];
+            while (node >= 0 && fitNode(node)) {
+                node = parent[node];
+            }
+        }
+    }
+
+    // Recomputes a node's bounds from its entities or children. Returns false if they came
+    // out the same, in which case nothing above it needs to change either.
+    private boolean fitNode(int node) {
+        int b = node * 6;
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double minZ = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        double maxZ = Double.NEGATIVE_INFINITY;
+        if (count[node] > 0) {
+            int end = first[node] + count[node];
+            for (int i = first[node]; i < end; i++) {
+                Vector3 min = entities[i].getBoundsMin();
+                Vector3 max = entities[i].getBoundsMax();
+                minX = Math.min(minX, min.x());
+                minY = Math.min(minY, min.y());
+                minZ = Math.min(minZ, min.z());
+                maxX = Math.max(maxX, max.x());
+                maxY = Math.max(maxY, max.y());
+                maxZ = Math.max(maxZ, max.z());
+            }
+        } else {
+            int l = first[node] * 6;
+            int r = l + 6;
+            minX = Math.min(bounds[l], bounds[r]);
+            minY = Math.min(bounds[l + 1], bounds[r + 1]);
+            minZ = Math.min(bounds[l + 2], bounds[r + 2]);
+            maxX = Math.max(bounds[l + 3], bounds[r + 3]);
+            maxY = Math.max(bounds[l + 4], bounds[r + 4]);
+            maxZ = Math.max(bounds[l + 5], bounds[r + 5]);
+        }
+        if (bounds[b] == minX && bounds[b + 1] == minY && bounds[b + 2] == minZ &&
+                bounds[b + 3] == maxX && bounds[b + 4] == maxY && bounds[b + 5] == maxZ) {
+            return false;
+        }
+        bounds[b] = minX;
+        bounds[b + 1] = minY;
+        bounds[b + 2] = minZ;
+        bounds[b + 3] = maxX;
+        bounds[b + 4] = maxY;
+        bounds[b + 5] = maxZ;
+        return true;
+    }
+
+    // Returns the distance at which a ray enters a node's bounding box, or positive
+    // infinity if it misses the box entirely. Rays starting inside the box enter at zero.
+    private double enter(int node, double ox, double oy, double oz, double ix, double iy, double iz) {
+        int b = node * 6;
+        double t1 = (bounds[b] - ox) * ix;
+        double t2 = (bounds[b + 3] - ox) * ix;
+        double tmin = Math.min(t1, t2);
+        double tmax = Math.max(t1, t2);
+        t1 = (bounds[b + 1] - oy) * iy;
+        t2 = (bounds[b + 4] - oy) * iy;
+        tmin = Math.max(tmin, Math.min(t1, t2));
+        tmax = Math.min(tmax, Math.max(t1, t2));
+        t1 = (bounds[b + 2] - oz) * iz;
+        t2 = (bounds[b + 5] - oz) * iz;
+        tmin = Math.max(tmin, Math.min(t1, t2));
+        tmax = Math.min(tmax, Math.max(t1, t2));
+        if (tmax < 0 || tmin > tmax) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return Math.max(tmin, 0);
+    }
+
+    private void build(int node, int start, int end) {
+        int b = node * 6;
+        bounds[b] = bounds[b + 1] = bounds[b + 2] = Double.POSITIVE_INFINITY;
+        bounds[b + 3] = bounds[b + 4] = bounds[b + 5] = Double.NEGATIVE_INFINITY;
+        double[] centroidBounds = new double[]{
+            Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+            Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY
+        };
+        for (int i = start; i < end; i++) {
+            int e = indices[i];
+            for (int a = 0; a < 3; a++) {
+                bounds[b + a] = Math.min(bounds[b + a], entityBounds[e * 6 + a]);
+                bounds[b + a + 3] = Math.max(bounds[b + a + 3], entityBounds[e * 6 + a + 3]);
+                centroidBounds[a] = Math.min(centroidBounds[a], centroids[e * 3 + a]);
+                centroidBounds[a + 3] = Math.max(centroidBounds[a + 3], centroids[e * 3 + a]);
+            }
+        }
+        int n = end - start;
+        first[node] = start;
+        count[node] = n;
+        if (n <= 1) {
+            return;
+        }
+
+        // Bin the centroids along each axis and evaluate the surface area heuristic at
+        // every bin boundary, keeping the cheapest split found.
+        double bestCost = Double.POSITIVE_INFINITY;
+        int bestAxis = -1;
+        int bestSplit = 0;
+        int[] binCount = new int[BINS];
+        double[] binBounds = new double[BINS * 6];
+        double[] rightArea = new double[BINS];
+        for (int a = 0; a < 3; a++) {
+            double cmin = centroidBounds[a];
+            double extent = centroidBounds[a + 3] - cmin;
+            if (extent <= 0) {
+                continue;
+            }
+            for (int i = 0; i < BINS; i++) {
+                binCount[i] = 0;
+                resetBox(binBounds, i * 6);
+            }
+            for (int i = start; i < end; i++) {
+                int e = indices[i];
+                int bin = binIndex(centroids[e * 3 + a], cmin, extent);
+                binCount[bin]++;
+                growBox(binBounds, bin * 6, entityBounds, e * 6);
+            }
+            double[] box = new double[6];
+            resetBox(box, 0);
+            int rightCount = 0;
+            int[] rightCounts = new int[BINS];
+            for (int i = BINS - 1; i > 0; i--) {
+                growBox(box, 0, binBounds, i * 6);
+                rightCount += binCount[i];
+                rightCounts[i] = rightCount;
+                rightArea[i] = area(box, 0);
+            }
+            resetBox(box, 0);
+            int leftCount = 0;
+            for (int i = 0; i < BINS - 1; i++) {
+                growBox(box, 0, binBounds, i * 6);
+                leftCount += binCount[i];
+                if (leftCount == 0 || rightCounts[i + 1] == 0) {
+                    continue;
+                }
+                double cost = area(box, 0) * leftCount + rightArea[i + 1] * rightCounts[i + 1];
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestAxis = a;
+                    bestSplit = i + 1;
+                }
+            }
+        }
+
+        double leafCost = INTERSECTION_COST * n;
+        double splitCost = TRAVERSAL_COST + INTERSECTION_COST * bestCost / area(bounds, b);
+        int mid;
+        if (bestAxis != -1 && (n > MAX_LEAF_SIZE || splitCost < leafCost)) {
+            double cmin = centroidBounds[bestAxis];
+            double extent = centroidBounds[bestAxis + 3] - cmin;
+            int i = start;
+            int j = end - 1;
+            while (i <= j) {
+                if (binIndex(centroids[indices[i] * 3 + bestAxis], cmin, extent) < bestSplit) {
+                    i++;
+                } else {
+                    int t = indices[i];
+                    indices[i] = indices[j];
+                    indices[j] = t;
+                    j--;
+                }
+            }
+            mid = i;
+        } else if (n > MAX_LEAF_SIZE) {
+            // All centroids coincide so no split separates them. Split down the middle
+            // anyway to keep leaves small.
+            mid = start + n / 2;
+        } else {
+            return;
+        }
+        int left = nodeCount;
+        nodeCount += 2;
+        first[node] = left;
+        count[node] = 0;
+        parent[left] = node;
+        parent[left + 1] = node;
+        build(left, start, mid);
+        build(left + 1, mid, end);
+    }
+
+    private static int binIndex(double c, double cmin, double extent) {
+        int bin = (int)((c - cmin) / extent * BINS);
+        return bin < 0 ? 0 : (bin >= BINS ? BINS - 1 : bin);
+    }
+
+    private static void resetBox(double[] box, int o) {
+        box[o] = box[o + 1] = box[o + 2] = Double.POSITIVE_INFINITY;
+        box[o + 3] = box[o + 4] = box[o + 5] = Double.NEGATIVE_INFINITY;
+    }
+
+    private static void growBox(double[] box, int o, double[] other, int p) {
+        for (int a = 0; a < 3; a++) {
+            box[o + a] = Math.min(box[o + a], other[p + a]);
+            box[o + a + 3] = Math.max(box[o + a + 3], other[p + a + 3]);
+        }
+    }
+
+    private static double area(double[] box, int o) {
+        double x = box[o + 3] - box[o];
+        double y = box[o + 4] - box[o + 1];
+        double z = box[o + 5] - box[o + 2];
+        if (x < 0 || y < 0 || z < 0) {
+            return 0;
+        }
+        return 2 * (x*y + y*z + z*x);
+    }
+}
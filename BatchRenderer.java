@@ -0,0 +1,266 @@
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+// Renders a scene in one go into an int[] framebuffer, without Swing or AWT. Used by the
+// --render command-line mode to render on headless machines.
+public final class BatchRenderer {
+    private static final int TILE_SIZE = 32;
+    // Packets cover square blocks of pixels of this size.
+    private static final int PACKET_SIZE = 4;
+
+    public Scene scene;
+    // When set, primary rays are traced in packets of neighbouring pixels.
+    public boolean packetTracing;
+    // When set, pixels on edges are supersampled after the frame is rendered. See
+    // Antialiasing.
+    public boolean antialiasing;
+    public int antialiasThreshold = Antialiasing.DEFAULT_THRESHOLD;
+
+    private int width;
+    private int height;
+    private int[] pixels;
+    // Entity hit by the ray through each pixel, and the single-sample colors, which the
+    // anti-aliasing pass compares neighbouring pixels by.
+    private Entity[] hits;
+    private int[] samples;
+    private ForkJoinPool pool;
+    private LongAdder rays = new LongAdder();
+
+    public BatchRenderer(Scene scene, int width, int height, ForkJoinPool pool) {
+        this.scene = scene;
+        this.width = width;
+        this.height = height;
+        this.pool = pool;
+        pixels = new int[width * height];
+        hits = new Entity[width * height];
+    }
+
+    // Renders the whole frame. The returned framebuffer holds one 0xRRGGBB value per pixel,
+    // row by row, and is reused by later calls.
+    public int[] render() {
+        int tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        pool.invoke(new TileTask(0, tilesX * tilesY, tilesX, false));
+        if (antialiasing) {
+            if (samples == null) {
+                samples = new int[width * height];
+            }
+            System.arraycopy(pixels, 0, samples, 0, pixels.length);
+            pool.invoke(new TileTask(0, tilesX * tilesY, tilesX, true));
+        }
+        return pixels;
+    }
+
+    // Total number of rays cast by all renders so far, including shadow rays.
+    public long getRayCount() {
+        return rays.sum();
+    }
+
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    private void renderTile(int x1, int y1, int x2, int y2) {
+        TraceContext ctx = TraceContext.get();
+        long raysBefore = ctx.rays;
+        double aspectRatio = (double)width / height;
+        ctx.spread = scene.camera.getSampleSpread(width);
+        if (packetTracing) {
+            renderTilePackets(x1, y1, x2, y2, ctx);
+            rays.add(ctx.rays - raysBefore);
+            return;
+        }
+        for (int y = y1; y < y2; y++) {
+            for (int x = x1; x < x2; x++) {
+                scene.camera.getRay(
+                    ((double)x + 0.5) / width,
+                    1 - ((double)y + 0.5) / height,
+                    aspectRatio,
+                    ctx
+                );
+                pixels[y * width + x] = scene.getRayColor(ctx);
+                hits[y * width + x] = ctx.firstEntity;
+            }
+        }
+        ctx.samples += (x2 - x1) * (y2 - y1);
+        rays.add(ctx.rays - raysBefore);
+    }
+
+    // Replaces the pixels of a tile that lie on an edge with supersampled colors.
+    private void antialiasTile(int x1, int y1, int x2, int y2) {
+        TraceContext ctx = TraceContext.get();
+        long raysBefore = ctx.rays;
+        for (int y = y1; y < y2; y++) {
+            for (int x = x1; x < x2; x++) {
+                if (isEdge(x, y)) {
+                    pixels[y * width + x] = Antialiasing.supersample(scene, x, y, width, height, ctx);
+                    ctx.samples += Antialiasing.GRID * Antialiasing.GRID;
+                }
+            }
+        }
+        rays.add(ctx.rays - raysBefore);
+    }
+
+    private boolean isEdge(int x, int y) {
+        int i = y * width + x;
+        return x > 0 && differs(i, i - 1) ||
+            x < width - 1 && differs(i, i + 1) ||
+            y > 0 && differs(i, i - width) ||
+            y < height - 1 && differs(i, i + width);
+    }
+
+    private boolean differs(int i, int j) {
+        return hits[i] != hits[j] || Antialiasing.differs(samples[i], samples[j], antialiasThreshold);
+    }
+
+    private void renderTilePackets(int x1, int y1, int x2, int y2, TraceContext ctx) {
+        double aspectRatio = (double)width / height;
+        RayPacket packet = RayPacket.get();
+        for (int by = y1; by < y2; by += PACKET_SIZE) {
+            for (int bx = x1; bx < x2; bx += PACKET_SIZE) {
+                packet.clear();
+                for (int y = by; y < by + PACKET_SIZE && y < y2; y++) {
+                    for (int x = bx; x < bx + PACKET_SIZE && x < x2; x++) {
+                        scene.camera.getRay(
+                            ((double)x + 0.5) / width,
+                            1 - ((double)y + 0.5) / height,
+                            aspectRatio,
+                            ctx
+                        );
+                        packet.add(ctx, x, y);
+                    }
+                }
+                scene.getRayColors(packet);
+                ctx.samples += packet.count;
+                for (int i = 0; i < packet.count; i++) {
+                    pixels[packet.y[i] * width + packet.x[i]] = packet.colors[i];
+                    hits[packet.y[i] * width + packet.x[i]] = packet.entity[i];
+                }
+            }
+        }
+    }
+
+    // Renders a range of tiles, splitting the range in half until a single tile is left
+    // so that idle workers can steal the other halves. Either renders the tiles or, for the
+    // anti-aliasing pass, supersamples their edges.
+    private final class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int from;
+        private final int to;
+        private final int tilesX;
+        private final boolean antialias;
+
+        TileTask(int from, int to, int tilesX, boolean antialias) {
+            this.from = from;
+            this.to = to;
+            this.tilesX = tilesX;
+            this.antialias = antialias;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new TileTask(from, mid, tilesX, antialias), new TileTask(mid, to, tilesX, antialias));
+                return;
+            }
+            int x1 = from % tilesX * TILE_SIZE;
+            int y1 = from / tilesX * TILE_SIZE;
+            int x2 = Math.min(x1 + TILE_SIZE, width);
+            int y2 = Math.min(y1 + TILE_SIZE, height);
+            if (antialias) {
+                antialiasTile(x1, y1, x2, y2);
+            } else {
+                renderTile(x1, y1, x2, y2);
+            }
+        }
+    }
+
+    // Entry point for the --render mode. Accepts an optional scene file along with
+    // "--size WIDTHxHEIGHT", "--output FILE", "--packets" and "--antialias" options.
+    public static void main(String[] args) {
+        String sceneFile = "default_scene.txt";
+        String output = "render.png";
+        int width = Main.width;
+        int height = Main.height;
+        boolean packets = false;
+        boolean antialias = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+            case "--render":
+                break;
+            case "--size": {
+                String[] split = i + 1 < args.length ? args[++i].split("x") : new String[0];
+                try {
+                    width = Integer.parseInt(split[0]);
+                    height = Integer.parseInt(split[1]);
+                } catch (Exception e) {
+                    System.out.println("Size must be given as WIDTHxHEIGHT!");
+                    System.exit(1);
+                }
+                break;
+            }
+            case "--packets":
+                packets = true;
+                break;
+            case "--antialias":
+                antialias = true;
+                break;
+            case "--output":
+                if (i + 1 < args.length) {
+                    output = args[++i];
+                }
+                break;
+            default:
+                sceneFile = args[i];
+            }
+        }
+
+        long t1 = System.nanoTime();
+        Scene scene = null;
+        try {
+            scene = new Scene(sceneFile);
+        } catch (ParsingException e) {
+            System.out.println(e.toString());
+            System.exit(1);
+        }
+        long t2 = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        BatchRenderer renderer = new BatchRenderer(scene, width, height, pool);
+        renderer.packetTracing = packets;
+        renderer.antialiasing = antialias;
+        renderer.render();
+        long t3 = System.nanoTime();
+        try {
+            ImageWriter.write(output, renderer.getPixels(), width, height);
+        } catch (IOException e) {
+            System.out.println("Couldn't write " + output + ": " + e.toString());
+            System.exit(1);
+        }
+        long t4 = System.nanoTime();
+        pool.shutdown();
+
+        double renderSeconds = (t3 - t2) / 1.0e9;
+        System.out.printf("Rendered %s at %dx%d on %d threads with a %s%n",
+            sceneFile, width, height, pool.getParallelism(), scene.getAcceleratorName());
+        System.out.printf("Load:   %.3f s%n", (t2 - t1) / 1.0e9);
+        System.out.printf("Render: %.3f s%n", renderSeconds);
+        System.out.printf("Write:  %.3f s%n", (t4 - t3) / 1.0e9);
+        System.out.printf("Rays:   %d (%.0f rays/s)%n", renderer.getRayCount(), renderer.getRayCount() / renderSeconds);
+        Metrics.Totals totals = Metrics.totals();
+        System.out.printf("        %d primary, %d reflection, %d refraction, %d shadow%n",
+            totals.primaryRays(), totals.reflectionRays, totals.refractionRays, totals.shadowRays);
+        System.out.printf("        %.2f bounces per path, %.1f intersection tests per ray%n",
+            totals.averageBounces(), totals.intersectionTestsPerRay());
+    }
+}
@@ -0,0 +1,458 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.LongSupplier;
+
+// Micro and macro benchmarks for the tracer, run with "java Main --benchmark". Every case is
+// warmed up first and then measured over several fixed-length iterations, and the results
+// are printed as CSV or JSON so they can be compared between builds.
+//
+// Options:
+//   --format csv|json   Output format, CSV by default.
+//   --output FILE       Write results to a file instead of standard output.
+//   --filter TEXT       Only run cases whose name contains the text.
+//   --warmup MS         Warm-up time per case, 1000 ms by default.
+//   --time MS           Length of each measured iteration, 500 ms by default.
+//   --iterations N      Number of measured iterations per case, 5 by default.
+//
+// The same cases can be run under JMH through find, as described in jmh/bench/TracerBenchmark.java.
+public final class Benchmark {
+    private static final int RAYS = 4096;
+    private static final int[] SCENE_SIZES = new int[]{100, 1000, 10000, 100000};
+    private static final int[] FRAME_SCENE_SIZES = new int[]{1000, 10000};
+    private static final int FRAME_WIDTH = 640;
+    private static final int FRAME_HEIGHT = 360;
+
+    // Results are accumulated here so the JIT can't discard the work being measured.
+    static volatile long sink;
+
+    // A single benchmark. run performs a batch of operations and returns how many. Scenes
+    // and anything else that is slow to build are built by setUp, which is only called for
+    // cases that are about to run, so that running a few cases doesn't build them all.
+    private abstract static class Case {
+        final String name;
+        final String param;
+
+        Case(String name, String param) {
+            this.name = name;
+            this.param = param;
+        }
+
+        void setUp() throws ParsingException {
+        }
+
+        abstract long run();
+
+        // The name and parameters, as printed while running and matched by --filter.
+        String id() {
+            return param.isEmpty() ? name : name + " " + param;
+        }
+    }
+
+    private static final class Result {
+        String name;
+        String param;
+        double[] opsPerSecond;
+        double mean;
+        double error;
+    }
+
+    private Benchmark() {
+    }
+
+    public static void main(String[] args) {
+        String format = "csv";
+        String output = null;
+        String filter = "";
+        long warmupMillis = 1000;
+        long iterationMillis = 500;
+        int iterations = 5;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+            case "--benchmark":
+                break;
+            case "--format":
+                format = args[++i];
+                break;
+            case "--output":
+                output = args[++i];
+                break;
+            case "--filter":
+                filter = args[++i];
+                break;
+            case "--warmup":
+                warmupMillis = Long.parseLong(args[++i]);
+                break;
+            case "--time":
+                iterationMillis = Long.parseLong(args[++i]);
+                break;
+            case "--iterations":
+                iterations = Integer.parseInt(args[++i]);
+                break;
+            default:
+                System.out.println("Unknown benchmark option: " + args[i]);
+                System.exit(1);
+            }
+        }
+
+        List<Result> results = new ArrayList<Result>();
+        for (Case c : cases()) {
+            if (!c.id().contains(filter)) {
+                continue;
+            }
+            System.err.println("Running " + c.id());
+            try {
+                c.setUp();
+            } catch (ParsingException e) {
+                System.out.println(e.toString());
+                System.exit(1);
+            }
+            results.add(measure(c, warmupMillis, iterationMillis, iterations));
+        }
+
+        PrintStream out = System.out;
+        if (output != null) {
+            try {
+                out = new PrintStream(new FileOutputStream(output));
+            } catch (IOException e) {
+                System.out.println("Couldn't write " + output + ": " + e.toString());
+                System.exit(1);
+            }
+        }
+        if (format.equals("json")) {
+            printJson(out, results);
+        } else {
+            printCsv(out, results);
+        }
+        out.flush();
+        if (out != System.out) {
+            out.close();
+        }
+    }
+
+    // Returns the case with the given name and parameters, as printed while running, so
+    // that code outside the default package can run it. Each call of the result runs one
+    // batch of the case and returns the number of operations in it.
+    public static LongSupplier find(String id) throws ParsingException {
+        for (final Case c : cases()) {
+            if (c.id().equals(id)) {
+                c.setUp();
+                return new LongSupplier() {
+                    @Override
+                    public long getAsLong() {
+                        return c.run();
+                    }
+                };
+            }
+        }
+        throw new IllegalArgumentException("No benchmark named " + id);
+    }
+
+    private static List<Case> cases() {
+        List<Case> cases = new ArrayList<Case>();
+        Random random = new Random(1);
+
+        // Rays from random points in a box around the origin aimed roughly at the origin, so
+        // that about half of them hit a unit-sized entity there.
+        final Ray3[] rays = new Ray3[RAYS];
+        for (int i = 0; i < RAYS; i++) {
+            Vector3 origin = randomVector(random, 10);
+            Vector3 target = randomVector(random, 1.5);
+            rays[i] = new Ray3(origin, target.minus(origin).normalize());
+        }
+
+        final Sphere sphere = new Sphere(new Vector3(0, 0, 0), 1, Surface.Diffuse, "");
+        final Cube cube = new Cube(new Vector3(0, 0, 0), 2, Surface.Diffuse, "");
+        cases.add(new Case("Sphere.collide", "") {
+            @Override
+            long run() {
+                long hits = 0;
+                for (Ray3 ray : rays) {
+                    if (sphere.collide(ray) != null) {
+                        hits++;
+                    }
+                }
+                sink += hits;
+                return rays.length;
+            }
+        });
+        cases.add(new Case("Sphere.intersect", "") {
+            @Override
+            long run() {
+                double sum = 0;
+                for (Ray3 ray : rays) {
+                    sum += Math.min(1e9, sphere.intersect(ray.position.x(), ray.position.y(), ray.position.z(), ray.direction.x(), ray.direction.y(), ray.direction.z()));
+                }
+                sink += (long)sum;
+                return rays.length;
+            }
+        });
+        cases.add(new Case("Cube.collide", "") {
+            @Override
+            long run() {
+                long hits = 0;
+                for (Ray3 ray : rays) {
+                    if (cube.collide(ray) != null) {
+                        hits++;
+                    }
+                }
+                sink += hits;
+                return rays.length;
+            }
+        });
+        cases.add(new Case("Cube.collideFaces", "") {
+            @Override
+            long run() {
+                long hits = 0;
+                for (Ray3 ray : rays) {
+                    if (cube.collideFaces(ray) != null) {
+                        hits++;
+                    }
+                }
+                sink += hits;
+                return rays.length;
+            }
+        });
+        cases.add(new Case("Cube.intersect", "") {
+            @Override
+            long run() {
+                double sum = 0;
+                for (Ray3 ray : rays) {
+                    sum += Math.min(1e9, cube.intersect(ray.position.x(), ray.position.y(), ray.position.z(), ray.direction.x(), ray.direction.y(), ray.direction.z()));
+                }
+                sink += (long)sum;
+                return rays.length;
+            }
+        });
+
+        final Camera camera = new Camera(new Vector3(4, 4, 4), new Vector3(-1, -1, -1), 90, 0);
+        cases.add(new Case("Camera.getRay", "") {
+            @Override
+            long run() {
+                TraceContext ctx = TraceContext.get();
+                double sum = 0;
+                for (int y = 0; y < 64; y++) {
+                    for (int x = 0; x < 64; x++) {
+                        camera.getRay(x / 64.0, y / 64.0, 16.0 / 9, ctx);
+                        sum += ctx.dx;
+                    }
+                }
+                sink += (long)sum;
+                return 64 * 64;
+            }
+        });
+
+        for (final int size : SCENE_SIZES) {
+            cases.add(new Case("Scene.castRay", "entities=" + size) {
+                Scene scene;
+                Ray3[] sceneRays;
+
+                @Override
+                void setUp() {
+                    scene = generateScene(size, 7);
+                    sceneRays = cameraRays(scene, new Random(size));
+                }
+
+                @Override
+                long run() {
+                    TraceContext ctx = TraceContext.get();
+                    long hits = 0;
+                    for (Ray3 ray : sceneRays) {
+                        ctx.setRay(ray);
+                        if (scene.castRay(ctx)) {
+                            hits++;
+                        }
+                    }
+                    sink += hits;
+                    return sceneRays.length;
+                }
+            });
+        }
+
+        for (final Surface surface : Surface.values()) {
+            final Scene scene = surfaceScene(surface);
+            final Ray3[] sceneRays = cameraRays(scene, random);
+            cases.add(new Case("Scene.getRayColor", "surface=" + surface) {
+                @Override
+                long run() {
+                    TraceContext ctx = TraceContext.get();
+                    long sum = 0;
+                    for (Ray3 ray : sceneRays) {
+                        ctx.setRay(ray);
+                        sum += scene.getRayColor(ctx);
+                    }
+                    sink += sum;
+                    return sceneRays.length;
+                }
+            });
+        }
+
+        final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        for (boolean packets : new boolean[]{false, true}) {
+            cases.add(new FrameCase("scene=default_scene.txt", pool, packets) {
+                @Override
+                Scene scene() throws ParsingException {
+                    return new Scene("default_scene.txt");
+                }
+            });
+        }
+        for (final int size : FRAME_SCENE_SIZES) {
+            for (boolean packets : new boolean[]{false, true}) {
+                cases.add(new FrameCase("entities=" + size, pool, packets) {
+                    @Override
+                    Scene scene() {
+                        return generateScene(size, 11);
+                    }
+                });
+            }
+        }
+        return cases;
+    }
+
+    // Renders a whole frame of the scene it builds with the batch renderer. Each operation
+    // is one frame.
+    private abstract static class FrameCase extends Case {
+        private final ForkJoinPool pool;
+        private final boolean packets;
+        private BatchRenderer renderer;
+
+        FrameCase(String param, ForkJoinPool pool, boolean packets) {
+            super("frame", param + (packets ? " packets" : "") + " size=" + FRAME_WIDTH + "x" + FRAME_HEIGHT);
+            this.pool = pool;
+            this.packets = packets;
+        }
+
+        abstract Scene scene() throws ParsingException;
+
+        @Override
+        void setUp() throws ParsingException {
+            renderer = new BatchRenderer(scene(), FRAME_WIDTH, FRAME_HEIGHT, pool);
+            renderer.packetTracing = packets;
+        }
+
+        @Override
+        long run() {
+            sink += renderer.render()[FRAME_WIDTH * FRAME_HEIGHT / 2];
+            return 1;
+        }
+    }
+
+    // Randomly placed spheres and cubes of mixed surfaces inside a large diffuse cube, lit by
+    // a few lights, with the camera looking in from one side.
+    static Scene generateScene(int entities, long seed) {
+        Random random = new Random(seed);
+        Scene scene = new Scene(new Camera(new Vector3(0, -60, 10), new Vector3(0, 1, -0.1), 90, 0));
+        scene.entities.add(new Cube(new Vector3(0, 0, 0), 200, Surface.Diffuse, ""));
+        double extent = 40;
+        double size = extent / Math.cbrt(entities);
+        Surface[] surfaces = new Surface[]{Surface.Diffuse, Surface.Diffuse, Surface.Specular};
+        for (int i = 0; i < entities; i++) {
+            Vector3 position = randomVector(random, extent);
+            Surface surface = surfaces[random.nextInt(surfaces.length)];
+            if (random.nextBoolean()) {
+                scene.entities.add(new Sphere(position, size * 0.4, surface, ""));
+            } else {
+                scene.entities.add(new Cube(position, size * 0.6, surface, ""));
+            }
+        }
+        for (int i = 0; i < 4; i++) {
+            scene.lights.add(new Light(new Vector3(random.nextDouble() * 60 - 30, random.nextDouble() * 60 - 30, 45), 0xffffff));
+        }
+        scene.build();
+        return scene;
+    }
+
+    // A single sphere of the given surface in front of the camera, inside a diffuse cube.
+    private static Scene surfaceScene(Surface surface) {
+        Scene scene = new Scene(new Camera(new Vector3(4, 4, 4), new Vector3(-1, -1, -1), 40, 0));
+        scene.entities.add(new Cube(new Vector3(0, 0, 0), 10, Surface.Diffuse, ""));
+        scene.entities.add(new Sphere(new Vector3(0, 0, 0), 1.5, surface, ""));
+        scene.lights.add(new Light(new Vector3(0, -2, 4), 0xff0000));
+        scene.lights.add(new Light(new Vector3(0, 0, 4), 0x00ff00));
+        scene.lights.add(new Light(new Vector3(0, 2, 4), 0x0000ff));
+        scene.build();
+        return scene;
+    }
+
+    private static Ray3[] cameraRays(Scene scene, Random random) {
+        Ray3[] rays = new Ray3[RAYS];
+        for (int i = 0; i < RAYS; i++) {
+            rays[i] = scene.camera.getRay(random.nextDouble(), random.nextDouble(), 16.0 / 9);
+        }
+        return rays;
+    }
+
+    private static Vector3 randomVector(Random random, double extent) {
+        return new Vector3(
+            (random.nextDouble() * 2 - 1) * extent,
+            (random.nextDouble() * 2 - 1) * extent,
+            (random.nextDouble() * 2 - 1) * extent
+        );
+    }
+
+    private static Result measure(Case c, long warmupMillis, long iterationMillis, int iterations) {
+        runFor(c, warmupMillis * 1000000);
+        Result result = new Result();
+        result.name = c.name;
+        result.param = c.param;
+        result.opsPerSecond = new double[iterations];
+        double sum = 0;
+        for (int i = 0; i < iterations; i++) {
+            result.opsPerSecond[i] = runFor(c, iterationMillis * 1000000);
+            sum += result.opsPerSecond[i];
+        }
+        result.mean = sum / iterations;
+        double variance = 0;
+        for (double v : result.opsPerSecond) {
+            variance += (v - result.mean) * (v - result.mean);
+        }
+        result.error = iterations > 1 ? Math.sqrt(variance / (iterations - 1)) : 0;
+        return result;
+    }
+
+    // Runs a case repeatedly for at least the given time and returns operations per second.
+    private static double runFor(Case c, long nanos) {
+        long ops = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            ops += c.run();
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < nanos);
+        return ops / (elapsed / 1.0e9);
+    }
+
+    private static void printCsv(PrintStream out, List<Result> results) {
+        out.println("benchmark,params,mode,iterations,score,error,unit");
+        for (Result r : results) {
+            out.println(String.format(Locale.ROOT, "%s,%s,thrpt,%d,%.3f,%.3f,ops/s",
+                r.name, r.param, r.opsPerSecond.length, r.mean, r.error));
+        }
+    }
+
+    private static void printJson(PrintStream out, List<Result> results) {
+        out.println("[");
+        for (int i = 0; i < results.size(); i++) {
+            Result r = results.get(i);
+            StringBuilder raw = new StringBuilder();
+            for (int j = 0; j < r.opsPerSecond.length; j++) {
+                raw.append(j == 0 ? "" : ", ").append(String.format(Locale.ROOT, "%.3f", r.opsPerSecond[j]));
+            }
+            out.println("    {");
+            out.println("        \"benchmark\": \"" + r.name + "\",");
+            out.println("        \"params\": \"" + r.param + "\",");
+            out.println("        \"mode\": \"thrpt\",");
+            out.println(String.format(Locale.ROOT, "        \"score\": %.3f,", r.mean));
+            out.println(String.format(Locale.ROOT, "        \"error\": %.3f,", r.error));
+            out.println("        \"unit\": \"ops/s\",");
+            out.println("        \"raw\": [" + raw + "]");
+            out.println("    }" + (i + 1 < results.size() ? "," : ""));
+        }
+        out.println("]");
+    }
+}
@@ -0,0 +1,347 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compact binary form of a scene file. Loading memory-maps the file and copies each block of
+// numbers straight into an array, so large scenes start without any text parsing. The
+// Sphere and Cube objects are still built from those arrays one by one, which takes most of
+// the load time.
+//
+// All values are big-endian. The file is laid out as struct-of-arrays blocks, with every
+// block of doubles starting on an 8-byte boundary. Entities are stored in the scene's order,
+// so indices into Scene.entities, such as those in animation files, stay the same:
+//
+//     int     magic, version
+//     int     sphere count, cube count, light count, texture count
+//     double  camera position x, y, z, direction x, y, z, fov, size
+//     double  light tolerance
+//     double  entity center x[], y[], z[], size[]    radius, or half side length for cubes
+//     double  entity refractive index[]
+//     double  entity reflectivity[]
+//     double  light position x[], y[], z[]
+//     int     light color[]
+//     int     entity texture[]     index into the texture table, or -1
+//     byte    entity kind[]        0 for a sphere, 1 for a cube
+//     byte    entity surface[]     Surface ordinal plus one, or 0 for none
+//     byte    texture filter ordinal
+//     byte    acceleration ordinal
+//     int     max bounces
+//     int     max alternations
+//     texture table: for each texture, an int byte length followed by the UTF-8 file name
+//
+// Before version 6, all the spheres were stored first and then all the cubes, and the
+// entity blocks above were split in two:
+//
+//     double  sphere center x[], y[], z[], radius[]
+//     double  cube center x[], y[], z[], half side length[]
+//     double  sphere refractive index[], cube refractive index[]    from version 3 on
+//     double  sphere reflectivity[], cube reflectivity[]            from version 4 on
+//
+// with no kind block. Version 1 also has no acceleration, version 3 and earlier no max
+// bounces, and version 4 and earlier no max alternations.
+public final class BinaryScene {
+    private static final int MAGIC = 0x52545343;
+    private static final int VERSION = 6;
+    private static final int HEADER_SIZE = 24;
+    private static final byte SPHERE = 0;
+    private static final byte CUBE = 1;
+
+    private BinaryScene() {
+    }
+
+    // Returns true if the file starts with the binary scene magic number.
+    public static boolean isBinary(String file) {
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            while (magic.hasRemaining() && channel.read(magic) >= 0) {
+            }
+            return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Writes the camera, entities, lights and settings of a scene.
+    public static void write(Scene scene, String file) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            write(scene, out);
+        }
+    }
+
+    // Same as write, to a stream, which is left open.
+    public static void write(Scene scene, OutputStream stream) throws IOException {
+        List<Entity> entities = new ArrayList<Entity>();
+        int sphereCount = 0;
+        for (Entity entity : scene.entities) {
+            if (entity instanceof Sphere) {
+                entities.add(entity);
+                sphereCount++;
+            } else if (entity instanceof Cube) {
+                entities.add(entity);
+            }
+        }
+        List<String> textures = new ArrayList<String>();
+        Map<String, Integer> textureIds = new HashMap<String, Integer>();
+        int[] entityTextures = new int[entities.size()];
+        for (int i = 0; i < entities.size(); i++) {
+            entityTextures[i] = textureId(entities.get(i).texture, textures, textureIds);
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(sphereCount);
+        out.writeInt(entities.size() - sphereCount);
+        out.writeInt(scene.lights.size());
+        out.writeInt(textures.size());
+
+        Camera camera = scene.camera;
+        if (camera == null) {
+            // The defaults used by the text format.
+            camera = new Camera(new Vector3(0, 0, 0), new Vector3(1, 0, 0), 90, 0);
+        }
+        writeVector3(out, camera.position);
+        writeVector3(out, camera.direction);
+        out.writeDouble(camera.fov);
+        out.writeDouble(camera.size);
+        out.writeDouble(scene.lightTolerance);
+
+        for (int axis = 0; axis < 3; axis++) {
+            for (Entity entity : entities) {
+                out.writeDouble(coordinate(entity.position, axis));
+            }
+        }
+        for (Entity entity : entities) {
+            out.writeDouble(entity instanceof Sphere ? ((Sphere)entity).radius : ((Cube)entity).sideLength / 2);
+        }
+        for (Entity entity : entities) {
+            out.writeDouble(entity.refractiveIndex);
+        }
+        for (Entity entity : entities) {
+            out.writeDouble(entity.reflectivity);
+        }
+        for (int axis = 0; axis < 3; axis++) {
+            for (Light light : scene.lights) {
+                out.writeDouble(coordinate(light.position, axis));
+            }
+        }
+        for (Light light : scene.lights) {
+            out.writeInt(light.color);
+        }
+        for (int id : entityTextures) {
+            out.writeInt(id);
+        }
+        for (Entity entity : entities) {
+            out.writeByte(entity instanceof Sphere ? SPHERE : CUBE);
+        }
+        for (Entity entity : entities) {
+            out.writeByte(surfaceCode(entity.surface));
+        }
+        out.writeByte(scene.textureFilter.ordinal());
+        out.writeByte(scene.acceleration.ordinal());
+        out.writeInt(scene.maxBounces);
+        out.writeInt(scene.maxAlternations);
+        for (String texture : textures) {
+            byte[] name = texture.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(name.length);
+            out.write(name);
+        }
+        out.flush();
+    }
+
+    // Reads a binary scene file into the scene.
+    public static void load(Scene scene, String file) throws ParsingException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new ParsingException(file + " is too large!");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            throw new ParsingException(file + " does not exist!");
+        }
+        try {
+            read(scene, buffer);
+        } catch (RuntimeException e) {
+            // Buffer underflows and bad indices all mean the file is cut short or corrupt.
+            throw new ParsingException(file + " is not a valid binary scene!");
+        }
+    }
+
+    // Reads a binary scene from memory into the scene, for scenes received over a network.
+    public static void load(Scene scene, ByteBuffer buffer) throws ParsingException {
+        try {
+            read(scene, buffer);
+        } catch (RuntimeException e) {
+            throw new ParsingException("Not a valid binary scene!");
+        }
+    }
+
+    private static void read(Scene scene, ByteBuffer buffer) throws ParsingException {
+        if (buffer.getInt(0) != MAGIC) {
+            throw new ParsingException("Not a binary scene file!");
+        }
+        int version = buffer.getInt(4);
+        if (version < 1 || version > VERSION) {
+            throw new ParsingException("Unsupported binary scene version " + version + "!");
+        }
+        int sphereCount = buffer.getInt(8);
+        int cubeCount = buffer.getInt(12);
+        int lightCount = buffer.getInt(16);
+        int textureCount = buffer.getInt(20);
+        if (sphereCount < 0 || cubeCount < 0 || lightCount < 0 || textureCount < 0) {
+            throw new ParsingException("Negative entity count!");
+        }
+
+        buffer.position(HEADER_SIZE);
+        double[] header = doubles(buffer, 9);
+        int n = sphereCount + cubeCount;
+        double[] entityData;
+        if (version >= 6) {
+            entityData = doubles(buffer, n * 4);
+        } else {
+            // Interleave the sphere and cube blocks into one block, spheres first.
+            double[] sphereData = doubles(buffer, sphereCount * 4);
+            double[] cubeData = doubles(buffer, cubeCount * 4);
+            entityData = new double[n * 4];
+            for (int block = 0; block < 4; block++) {
+                System.arraycopy(sphereData, block * sphereCount, entityData, block * n, sphereCount);
+                System.arraycopy(cubeData, block * cubeCount, entityData, block * n + sphereCount, cubeCount);
+            }
+        }
+        double[] refractiveIndices = version >= 3 ? doubles(buffer, n) : null;
+        double[] reflectivities = version >= 4 ? doubles(buffer, n) : null;
+        double[] lightData = doubles(buffer, lightCount * 3);
+        int[] lightColors = ints(buffer, lightCount);
+        // Older versions store the sphere values and then the cube values of these blocks
+        // back to back, which reads the same as one block of every entity.
+        int[] entityTextures = ints(buffer, n);
+        byte[] kinds = new byte[n];
+        if (version >= 6) {
+            buffer.get(kinds);
+        } else {
+            Arrays.fill(kinds, sphereCount, n, CUBE);
+        }
+        byte[] surfaces = new byte[n];
+        buffer.get(surfaces);
+        int filter = buffer.get();
+        int acceleration = version >= 2 ? buffer.get() : Acceleration.Auto.ordinal();
+        int maxBounces = version >= 4 ? buffer.getInt() : Scene.MAX_REFLECTIONS;
+        int maxAlternations = version >= 5 ? buffer.getInt() : 0;
+        String[] textures = new String[textureCount];
+        for (int i = 0; i < textureCount; i++) {
+            byte[] name = new byte[buffer.getInt()];
+            buffer.get(name);
+            textures[i] = new String(name, StandardCharsets.UTF_8);
+        }
+
+        scene.camera = new Camera(
+            new Vector3(header[0], header[1], header[2]),
+            new Vector3(header[3], header[4], header[5]),
+            header[6],
+            header[7]
+        );
+        scene.lightTolerance = header[8];
+        scene.textureFilter = TextureFilter.values()[filter];
+        scene.acceleration = Acceleration.values()[acceleration];
+        scene.maxBounces = maxBounces;
+        scene.maxAlternations = maxAlternations;
+
+        List<Entity> entities = new ArrayList<Entity>(n);
+        for (int i = 0; i < n; i++) {
+            Vector3 center = new Vector3(entityData[i], entityData[n + i], entityData[2*n + i]);
+            double size = entityData[3*n + i];
+            Surface surface = surface(surfaces[i]);
+            String texture = texture(textures, entityTextures[i]);
+            Entity entity;
+            if (kinds[i] == SPHERE) {
+                entity = new Sphere(center, size, surface, texture);
+            } else if (kinds[i] == CUBE) {
+                entity = new Cube(center, size * 2, surface, texture);
+            } else {
+                throw new ParsingException("Unknown entity kind " + kinds[i] + "!");
+            }
+            if (refractiveIndices != null) {
+                entity.refractiveIndex = refractiveIndices[i];
+            }
+            if (reflectivities != null) {
+                entity.reflectivity = reflectivities[i];
+            }
+            entities.add(entity);
+        }
+        scene.entities = entities;
+
+        List<Light> lights = new ArrayList<Light>(lightCount);
+        n = lightCount;
+        for (int i = 0; i < n; i++) {
+            lights.add(new Light(
+                new Vector3(lightData[i], lightData[n + i], lightData[2*n + i]),
+                lightColors[i]
+            ));
+        }
+        scene.lights = lights;
+    }
+
+    // Bulk-copies doubles from the buffer's position and advances past them.
+    private static double[] doubles(ByteBuffer buffer, int count) {
+        double[] values = new double[count];
+        buffer.asDoubleBuffer().get(values);
+        buffer.position(buffer.position() + count * 8);
+        return values;
+    }
+
+    private static int[] ints(ByteBuffer buffer, int count) {
+        int[] values = new int[count];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + count * 4);
+        return values;
+    }
+
+    private static int textureId(Texture texture, List<String> textures, Map<String, Integer> ids) {
+        if (texture == null || texture.getFile() == null) {
+            return -1;
+        }
+        Integer id = ids.get(texture.getFile());
+        if (id == null) {
+            id = textures.size();
+            textures.add(texture.getFile());
+            ids.put(texture.getFile(), id);
+        }
+        return id;
+    }
+
+    private static String texture(String[] textures, int id) {
+        return id < 0 ? "" : textures[id];
+    }
+
+    private static int surfaceCode(Surface surface) {
+        return surface == null ? 0 : surface.ordinal() + 1;
+    }
+
+    private static Surface surface(byte code) {
+        return code == 0 ? null : Surface.values()[code - 1];
+    }
+
+    private static void writeVector3(DataOutputStream out, Vector3 v) throws IOException {
+        out.writeDouble(v.x());
+        out.writeDouble(v.y());
+        out.writeDouble(v.z());
+    }
+
+    private static double coordinate(Vector3 v, int axis) {
+        return axis == 0 ? v.x() : (axis == 1 ? v.y() : v.z());
+    }
+}
@@ -37,6 +37,80 @@ public final class Camera extends Ray3 {
         return new Ray3(pointNear, pointFar.minus(pointNear).normalize());
     }
 
+    // Same as getRay, but stores the ray in the context instead of allocating one.
+    public void getRay(double x, double y, double aspectRatio, TraceContext ctx) {
+        double dx = direction.x();
+        double dy = direction.y();
+        double dz = direction.z();
+        // xAxis is direction x (0, 0, 1) normalized, and yAxis is xAxis x direction.
+        double xl = Math.sqrt(dy*dy + dx*dx);
+        double xx = dy / xl;
+        double xy = -dx / xl;
+        double yx = xy*dz;
+        double yy = -xx*dz;
+        double yz = xx*dy - xy*dx;
+
+        double widthNear = size;
+        double heightNear = widthNear / aspectRatio;
+
+        double widthFar = 2 * Math.tan(fov / 2 / 180 * Math.PI) + widthNear;
+        double heightFar = widthFar / aspectRatio;
+
+        // Offsets of the near and far points along each axis, relative to the position.
+        double ax = (x - 0.5) * widthNear;
+        double ay = (y - 0.5) * heightNear;
+        double bx = (x - 0.5) * widthFar;
+        double by = (y - 0.5) * heightFar;
+
+        double nearX = position.x() + xx*ax + yx*ay;
+        double nearY = position.y() + xy*ax + yy*ay;
+        double nearZ = position.z() + yz*ay;
+        double rx = dx + xx*(bx - ax) + yx*(by - ay);
+        double ry = dy + xy*(bx - ax) + yy*(by - ay);
+        double rz = dz + yz*(by - ay);
+        double rl = Math.sqrt(rx*rx + ry*ry + rz*rz);
+        ctx.setRay(nearX, nearY, nearZ, rx / rl, ry / rl, rz / rl);
+    }
+
+    // Inverse of getRay: finds the x and y, ranging from zero to one across the view, of the
+    // ray that passes through a point, and stores them in screen[0] and screen[1]. The rays
+    // start on a near plane of the camera's size and spread out from there, so they all meet
+    // at an apex behind it; screen[2] gets the distance of the point in front of the near
+    // plane along the view direction. Returns false for points behind the near plane.
+    public boolean project(double px, double py, double pz, double aspectRatio, double[] screen) {
+        double dx = direction.x();
+        double dy = direction.y();
+        double dz = direction.z();
+        double xl = Math.sqrt(dy*dy + dx*dx);
+        double xx = dy / xl;
+        double xy = -dx / xl;
+        double yx = xy*dz;
+        double yy = -xx*dz;
+        double yz = xx*dy - xy*dx;
+
+        double rx = px - position.x();
+        double ry = py - position.y();
+        double rz = pz - position.z();
+        double depth = rx*dx + ry*dy + rz*dz;
+        if (depth <= 0) {
+            return false;
+        }
+        // Width of the view at the point's depth; the near plane is at depth zero and the
+        // far plane used by getRay at depth one.
+        double width = size + 2 * Math.tan(fov / 2 / 180 * Math.PI) * depth;
+        double height = width / aspectRatio;
+        screen[0] = (rx*xx + ry*xy) / width + 0.5;
+        screen[1] = (rx*yx + ry*yy + rz*yz) / height + 0.5;
+        screen[2] = depth;
+        return true;
+    }
+
+    // Angle in radians between the rays of neighbouring pixels, for an image of the given
+    // width in pixels.
+    public double getSampleSpread(int width) {
+        return 2 * Math.tan(fov / 2 / 180 * Math.PI) / width;
+    }
+
     public void move(Vector3 keyboardVector) {
         position = position.
             plus(direction.scale(keyboardVector.y())).
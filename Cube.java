@@ -1,22 +1,30 @@
-import javax.imageio.ImageIO;
-import java.io.File;
-import java.io.IOException;
-
 public final class Cube extends Entity {
     public double sideLength;
 
-    private Ray3[] faces;
-
     public Cube(Vector3 position, double sideLength, Surface surface, String texture) {
         this.position = position;
         this.sideLength = sideLength;
         this.surface = surface;
+        this.texture = Texture.load(texture);
+    }
+
+    @Override
+    public Vector3 getBoundsMin() {
         double hs = sideLength / 2;
-        try {
-            this.texture = ImageIO.read(new File(texture));
-        } catch (IOException e) {
-        }
-        faces = new Ray3[]{
+        return position.minus(new Vector3(hs, hs, hs));
+    }
+
+    @Override
+    public Vector3 getBoundsMax() {
+        double hs = sideLength / 2;
+        return position.plus(new Vector3(hs, hs, hs));
+    }
+
+    // The faces as a point on each and its outward normal. Built on demand rather than
+    // stored, since only collide uses them and large scenes have many cubes.
+    private Ray3[] faces() {
+        double hs = sideLength / 2;
+        return new Ray3[]{
             new Ray3(
                 position.plus(new Vector3(-hs, 0, 0)),
                 new Vector3(-1, 0, 0)
@@ -46,9 +54,39 @@ public final class Cube extends Entity {
 
     @Override
     public Ray3 collide(Ray3 ray) {
+        double hs = sideLength / 2;
+        double ox = ray.position.x();
+        double oy = ray.position.y();
+        double oz = ray.position.z();
+        double dx = ray.direction.x();
+        double dy = ray.direction.y();
+        double dz = ray.direction.z();
+        double t = intersect(position.x(), position.y(), position.z(), hs, ox, oy, oz, 1 / dx, 1 / dy, 1 / dz);
+        if (t == Double.POSITIVE_INFINITY) {
+            return null;
+        }
+        Vector3 point = new Vector3(ox + dx*t, oy + dy*t, oz + dz*t);
+        // The normal of the face that was crossed, facing back towards the ray's origin.
+        double fx = Math.abs(point.x() - position.x());
+        double fy = Math.abs(point.y() - position.y());
+        double fz = Math.abs(point.z() - position.z());
+        Vector3 normal;
+        if (fx >= fy && fx >= fz) {
+            normal = new Vector3(dx > 0 ? -1 : 1, 0, 0);
+        } else if (fy >= fz) {
+            normal = new Vector3(0, dy > 0 ? -1 : 1, 0);
+        } else {
+            normal = new Vector3(0, 0, dz > 0 ? -1 : 1);
+        }
+        return new Ray3(point, normal);
+    }
+
+    // Reference version of collide that tests each face plane separately. It is much slower
+    // and is kept for CubeTest to check the slab test against.
+    Ray3 collideFaces(Ray3 ray) {
         Ray3 closestNormal = null;
         double distanceSquared = 0;
-        for (Ray3 face : faces) {
+        for (Ray3 face : faces()) {
             Vector3 faceNormal = face.direction;
             double distance = ray.position.minus(face.position).dot(faceNormal);
             if (distance < 0) {
@@ -77,4 +115,77 @@ public final class Cube extends Entity {
         }
         return closestNormal;
     }
+
+    @Override
+    public double intersect(double ox, double oy, double oz, double dx, double dy, double dz) {
+        return intersect(position.x(), position.y(), position.z(), sideLength / 2, ox, oy, oz, 1 / dx, 1 / dy, 1 / dz);
+    }
+
+    // Slab test for a cube given by its center and half side length, shared with the packed
+    // primitive arrays. Takes the inverse of the ray's direction, which callers tracing
+    // many entities compute once per ray. Returns the distance to the face where the ray
+    // enters the cube, or where it leaves for rays starting inside, or positive infinity
+    // if it misses.
+    static double intersect(double cx, double cy, double cz, double hs,
+            double ox, double oy, double oz, double ix, double iy, double iz) {
+        double near = Double.NEGATIVE_INFINITY;
+        double far = Double.POSITIVE_INFINITY;
+        // A ray parallel to a pair of faces has an infinite inverse direction. It either
+        // runs between them the whole way or never comes between them at all.
+        if (Double.isInfinite(ix)) {
+            if (Math.abs(ox - cx) > hs) {
+                return Double.POSITIVE_INFINITY;
+            }
+        } else {
+            double t1 = (cx - hs - ox) * ix;
+            double t2 = (cx + hs - ox) * ix;
+            near = Math.min(t1, t2);
+            far = Math.max(t1, t2);
+        }
+        if (Double.isInfinite(iy)) {
+            if (Math.abs(oy - cy) > hs) {
+                return Double.POSITIVE_INFINITY;
+            }
+        } else {
+            double t1 = (cy - hs - oy) * iy;
+            double t2 = (cy + hs - oy) * iy;
+            near = Math.max(near, Math.min(t1, t2));
+            far = Math.min(far, Math.max(t1, t2));
+        }
+        if (Double.isInfinite(iz)) {
+            if (Math.abs(oz - cz) > hs) {
+                return Double.POSITIVE_INFINITY;
+            }
+        } else {
+            double t1 = (cz - hs - oz) * iz;
+            double t2 = (cz + hs - oz) * iz;
+            near = Math.max(near, Math.min(t1, t2));
+            far = Math.min(far, Math.max(t1, t2));
+        }
+        if (near > far || far < 0.00001) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return near >= 0.00001 ? near : far;
+    }
+
+    @Override
+    public void setNormal(TraceContext ctx) {
+        // The face that was hit is the one the hit point lies furthest out along.
+        double fx = ctx.px - position.x();
+        double fy = ctx.py - position.y();
+        double fz = ctx.pz - position.z();
+        double ax = Math.abs(fx);
+        double ay = Math.abs(fy);
+        double az = Math.abs(fz);
+        ctx.nx = 0;
+        ctx.ny = 0;
+        ctx.nz = 0;
+        if (ax >= ay && ax >= az) {
+            ctx.nx = ctx.dx > 0 ? -1 : 1;
+        } else if (ay >= az) {
+            ctx.ny = ctx.dy > 0 ? -1 : 1;
+        } else {
+            ctx.nz = ctx.dz > 0 ? -1 : 1;
+        }
+    }
 }
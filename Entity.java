@@ -1,8 +1,26 @@
-import java.awt.image.BufferedImage;
-
 public abstract class Entity {
     public Surface surface;
     public Vector3 position;
-    public BufferedImage texture;
+    public Texture texture;
+    // Index of refraction of a transparent entity, 1.5 being about that of glass.
+    public double refractiveIndex = 1.5;
+    // Fraction of the light a specular entity reflects.
+    public double reflectivity = 1;
     public abstract Ray3 collide(Ray3 ray);
+    // Allocation-free counterpart of collide. Returns the distance along a ray with a
+    // normalized direction to its first intersection with the entity, or positive
+    // infinity if the ray misses.
+    public abstract double intersect(double ox, double oy, double oz, double dx, double dy, double dz);
+    // Sets the normal of the hit stored in the context, which must be on this entity.
+    public abstract void setNormal(TraceContext ctx);
+
+    // Returns true if the ray hits the entity within the given distance. Used for shadow
+    // rays, which only need to know whether anything is in the way.
+    public boolean occludes(double ox, double oy, double oz, double dx, double dy, double dz, double maxDistance) {
+        return intersect(ox, oy, oz, dx, dy, dz) <= maxDistance;
+    }
+
+    // Corners of the axis-aligned box enclosing the entity.
+    public abstract Vector3 getBoundsMin();
+    public abstract Vector3 getBoundsMax();
 }
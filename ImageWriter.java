@@ -0,0 +1,102 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+// Writes 0xRRGGBB framebuffers to image files without going through AWT, so that images
+// can be written on machines without a display.
+public final class ImageWriter {
+    private ImageWriter() {
+    }
+
+    // Picks the format from the file extension: ".png" writes a PNG, ".ppm" writes a binary
+    // PPM, and anything else writes headerless 8-bit RGB triples.
+    public static void write(String file, int[] pixels, int width, int height) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            String lower = file.toLowerCase();
+            if (lower.endsWith(".png")) {
+                writePng(out, pixels, width, height);
+            } else if (lower.endsWith(".ppm")) {
+                out.write(("P6\n" + width + " " + height + "\n255\n").getBytes("US-ASCII"));
+                writeRaw(out, pixels, width, height);
+            } else {
+                writeRaw(out, pixels, width, height);
+            }
+        }
+    }
+
+    public static void writeRaw(OutputStream out, int[] pixels, int width, int height) throws IOException {
+        byte[] row = new byte[width * 3];
+        for (int y = 0; y < height; y++) {
+            packRow(pixels, y * width, width, row, 0);
+            out.write(row);
+        }
+    }
+
+    public static void writePng(OutputStream out, int[] pixels, int width, int height) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.write(new byte[]{(byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'});
+
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8; // Bit depth.
+        header[9] = 2; // Truecolor RGB.
+        writeChunk(data, "IHDR", header, header.length);
+
+        // Every scanline starts with a filter type byte. Filter type 0 leaves the row as is.
+        byte[] row = new byte[width * 3 + 1];
+        ByteArray compressed = new ByteArray();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (DeflaterOutputStream zip = new DeflaterOutputStream(compressed, deflater, 1 << 16)) {
+            for (int y = 0; y < height; y++) {
+                packRow(pixels, y * width, width, row, 1);
+                zip.write(row);
+            }
+        } finally {
+            deflater.end();
+        }
+        writeChunk(data, "IDAT", compressed.bytes(), compressed.size());
+        writeChunk(data, "IEND", new byte[0], 0);
+        data.flush();
+    }
+
+    private static void packRow(int[] pixels, int offset, int width, byte[] row, int start) {
+        for (int x = 0, i = start; x < width; x++) {
+            int color = pixels[offset + x];
+            row[i++] = (byte)(color >> 16);
+            row[i++] = (byte)(color >> 8);
+            row[i++] = (byte)color;
+        }
+    }
+
+    private static void writeChunk(DataOutputStream out, String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        out.writeInt((int)crc.getValue());
+    }
+
+    private static void putInt(byte[] b, int i, int v) {
+        b[i] = (byte)(v >> 24);
+        b[i + 1] = (byte)(v >> 16);
+        b[i + 2] = (byte)(v >> 8);
+        b[i + 3] = (byte)v;
+    }
+
+    // ByteArrayOutputStream that hands out its buffer rather than copying it.
+    private static final class ByteArray extends ByteArrayOutputStream {
+        byte[] bytes() {
+            return buf;
+        }
+    }
+}
@@ -24,22 +24,32 @@ public final class Input extends ComponentAdapter implements KeyListener, MouseL
     private int lastMouseY;
     private Config config;
     private List<Interruptable> onInputInterruptables = new ArrayList<Interruptable>();
+    // Set by wake until waitForInput sees it, so that a wake just before the wait isn't lost.
+    private boolean woken = false;
 
     public Input(Config config) {
         this.config = config;
     }
 
     public void waitForInput() {
-        if (!moving()) {
-            try {
-                synchronized (this) {
+        synchronized (this) {
+            if (!moving() && !woken) {
+                try {
                     wait();
+                } catch (InterruptedException e) {
                 }
-            } catch (InterruptedException e) {
             }
+            woken = false;
         }
     }
 
+    // Makes waitForInput return for something other than the user, such as an edit posted
+    // to the scene.
+    public synchronized void wake() {
+        woken = true;
+        notify();
+    }
+
     public void addInterruptable(Interruptable i) {
         onInputInterruptables.add(i);
     }
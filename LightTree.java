@@ -0,0 +1,138 @@
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+// Bounding volume hierarchy over the lights of a scene. Every node knows the combined
+// brightness of the lights below it, which bounds how much light the whole group can add
+// at a point. Faint groups are skipped without looking at the individual lights, so
+// shading cost follows the number of lights that matter rather than the total number of
+// lights. Stored in flat arrays like BVH.
+public final class LightTree {
+    private static final int MAX_LEAF_SIZE = 2;
+
+    private Light[] lights;
+    // Six doubles per node: min x, y, z followed by max x, y, z.
+    private double[] bounds;
+    // Sum over the node's lights of their brightest channel, from 0 to 1 per light.
+    private double[] power;
+    // For leaves, the index of the first light. For interior nodes, the index of the
+    // left child, with the right child following it.
+    private int[] first;
+    // Number of lights in a leaf, or zero for interior nodes.
+    private int[] count;
+    private int nodeCount;
+
+    public LightTree(List<Light> list) {
+        lights = list.toArray(new Light[0]);
+        int maxNodes = Math.max(1, 2 * lights.length - 1);
+        bounds = new double[maxNodes * 6];
+        power = new double[maxNodes];
+        first = new int[maxNodes];
+        count = new int[maxNodes];
+        if (lights.length > 0) {
+            nodeCount = 1;
+            build(0, 0, lights.length);
+        }
+    }
+
+    public int size() {
+        return lights.length;
+    }
+
+    public Light get(int i) {
+        return lights[i];
+    }
+
+    // Brightest channel of a light's color, from 0 to 1.
+    public static double power(Light light) {
+        int c = light.color;
+        return Math.max((c >> 16) & 0xff, Math.max((c >> 8) & 0xff, c & 0xff)) / 255.0;
+    }
+
+    // Collects into selected the indices of the lights needed to shade a point to within
+    // the given tolerance, and returns how many there are. Groups of lights are left out
+    // while the most they could add up to, over all the groups left out, stays within the
+    // tolerance. scale converts power over squared distance into the same units as the
+    // tolerance. selected must hold at least size() entries.
+    public int select(double px, double py, double pz, double scale, double tolerance, int[] selected, int[] stack) {
+        if (nodeCount == 0) {
+            return 0;
+        }
+        int n = 0;
+        double skipped = 0;
+        int sp = 0;
+        stack[sp++] = 0;
+        while (sp > 0) {
+            int node = stack[--sp];
+            int b = node * 6;
+            // Squared distance from the point to the nearest point of the node's box.
+            double ex = Math.max(0, Math.max(bounds[b] - px, px - bounds[b + 3]));
+            double ey = Math.max(0, Math.max(bounds[b + 1] - py, py - bounds[b + 4]));
+            double ez = Math.max(0, Math.max(bounds[b + 2] - pz, pz - bounds[b + 5]));
+            double distanceSquared = ex*ex + ey*ey + ez*ez;
+            double contribution = power[node] * scale / distanceSquared;
+            if (skipped + contribution <= tolerance) {
+                skipped += contribution;
+                continue;
+            }
+            if (count[node] > 0) {
+                for (int i = first[node]; i < first[node] + count[node]; i++) {
+                    selected[n++] = i;
+                }
+                continue;
+            }
+            stack[sp++] = first[node] + 1;
+            stack[sp++] = first[node];
+        }
+        return n;
+    }
+
+    // Maximum depth of the stack select needs.
+    public int stackSize() {
+        return Math.max(1, nodeCount);
+    }
+
+    private void build(int node, int start, int end) {
+        int b = node * 6;
+        bounds[b] = bounds[b + 1] = bounds[b + 2] = Double.POSITIVE_INFINITY;
+        bounds[b + 3] = bounds[b + 4] = bounds[b + 5] = Double.NEGATIVE_INFINITY;
+        power[node] = 0;
+        for (int i = start; i < end; i++) {
+            Vector3 p = lights[i].position;
+            bounds[b] = Math.min(bounds[b], p.x());
+            bounds[b + 1] = Math.min(bounds[b + 1], p.y());
+            bounds[b + 2] = Math.min(bounds[b + 2], p.z());
+            bounds[b + 3] = Math.max(bounds[b + 3], p.x());
+            bounds[b + 4] = Math.max(bounds[b + 4], p.y());
+            bounds[b + 5] = Math.max(bounds[b + 5], p.z());
+            power[node] += power(lights[i]);
+        }
+        first[node] = start;
+        count[node] = end - start;
+        if (end - start <= MAX_LEAF_SIZE) {
+            return;
+        }
+        // Split at the median along the longest axis of the box.
+        double ex = bounds[b + 3] - bounds[b];
+        double ey = bounds[b + 4] - bounds[b + 1];
+        double ez = bounds[b + 5] - bounds[b + 2];
+        final int axis = ex >= ey && ex >= ez ? 0 : (ey >= ez ? 1 : 2);
+        Arrays.sort(lights, start, end, new Comparator<Light>() {
+            @Override
+            public int compare(Light a, Light b) {
+                return Double.compare(coordinate(a.position, axis), coordinate(b.position, axis));
+            }
+        });
+        int mid = (start + end) / 2;
+        int left = nodeCount;
+        nodeCount += 2;
+        first[node] = left;
+        count[node] = 0;
+        build(left, start, mid);
+        build(left + 1, mid, end);
+    }
+
+    private static double coordinate(Vector3 v, int axis) {
+        return axis == 0 ? v.x() : (axis == 1 ? v.y() : v.z());
+    }
+}
@@ -1,9 +1,12 @@
 import javax.swing.JFrame;
 import java.awt.Dimension;
+import java.io.IOException;
 
 public class Main {
     public static int width = 1600;
     public static int height = 900;
+    // Milliseconds between rows written by --metrics.
+    private static final long METRICS_INTERVAL = 10000;
 
     private static JFrame frame;
     private static Config config;
@@ -11,6 +14,55 @@ public class Main {
     private static RayTracer rayTracer;
 
     public static void main(String[] args) {
+        // Render straight to an image file without opening a window.
+        if (args.length > 0 && args[0].equals("--render")) {
+            BatchRenderer.main(args);
+            return;
+        }
+        // Convert a scene definition file to the binary format, which loads much faster.
+        if (args.length > 0 && args[0].equals("--convert")) {
+            if (args.length != 3) {
+                System.out.println("Usage: --convert <scene file> <binary file>");
+                System.exit(1);
+            }
+            long start = System.nanoTime();
+            Scene scene;
+            try {
+                scene = new Scene(args[1]);
+            } catch (ParsingException e) {
+                System.out.println(e.toString());
+                System.exit(1);
+                return;
+            }
+            try {
+                BinaryScene.write(scene, args[2]);
+            } catch (IOException e) {
+                System.out.println("Couldn't write " + args[2] + ": " + e.toString());
+                System.exit(1);
+            }
+            System.out.printf("Converted %d entities and %d lights in %.1f s%n",
+                scene.entities.size(), scene.lights.size(), (System.nanoTime() - start) / 1e9);
+            return;
+        }
+        // Render every frame of an animation to numbered image files.
+        if (args.length > 0 && args[0].equals("--sequence")) {
+            SequenceRenderer.main(args);
+            return;
+        }
+        // Render a still across several processes or machines. See RenderCoordinator.
+        if (args.length > 0 && args[0].equals("--coordinate")) {
+            RenderCoordinator.main(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--worker")) {
+            RenderWorker.main(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--benchmark")) {
+            Benchmark.main(args);
+            return;
+        }
+
         // Load the configuration file. Currently the configuration file
         // only has options for keyboard controls.
         try {
@@ -28,19 +80,64 @@ public class Main {
         input = new Input(config);
         input.newSize = frame.getSize();
 
-        // If there are any command-line arguments, use the first argument
+        // If there are any command-line arguments, use the one that isn't an option
         // as the world definition file. Otherwise default to "default_scene.txt".
+        String sceneFile = "default_scene.txt";
+        boolean packets = false;
+        boolean antialias = false;
+        boolean reprojection = true;
+        boolean preview = true;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--packets")) {
+                packets = true;
+            } else if (arg.equals("--antialias")) {
+                antialias = true;
+            } else if (arg.equals("--no-reprojection")) {
+                reprojection = false;
+            } else if (arg.equals("--no-preview")) {
+                preview = false;
+            } else if (arg.equals("--jmx")) {
+                Metrics.registerMBean();
+            } else if (arg.equals("--metrics")) {
+                // Log the counters as CSV every few seconds, to a file or "-" for the console.
+                if (i + 1 >= args.length) {
+                    System.out.println("Usage: --metrics <csv file, or - for the console>");
+                    System.exit(1);
+                }
+                String file = args[++i];
+                try {
+                    Metrics.startLog(file, METRICS_INTERVAL);
+                } catch (IOException e) {
+                    System.out.println("Couldn't open " + file + ": " + e.toString());
+                    System.exit(1);
+                }
+            } else {
+                sceneFile = arg;
+            }
+        }
         Scene scene = null;
         try {
-            scene = new Scene(args.length == 0 ? "default_scene.txt" : args[0]);
+            scene = new Scene(sceneFile);
         } catch (ParsingException e) {
             System.out.println(e.toString());
             System.exit(1);
         }
         rayTracer = new RayTracer(scene, new Dimension(width, height), input);
+        rayTracer.packetTracing = packets;
+        rayTracer.antialiasing = antialias;
+        rayTracer.reprojection = reprojection;
+        rayTracer.preview = preview;
         // Add the ray tracer to the list of Interruptable objects that are
         // interrupted on input.
         input.addInterruptable(rayTracer);
+        // Wake the main loop to show edits posted to the scene from other threads.
+        scene.onPost = new Runnable() {
+            @Override
+            public void run() {
+                input.wake();
+            }
+        };
 
         frame.add(rayTracer);
         frame.setVisible(true);
@@ -0,0 +1,268 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Counters describing what the tracer has been doing, for sizing hardware and spotting
+// regressions. The counters bumped for every ray live in each thread's TraceContext, so
+// counting is a plain increment of a field no other thread writes, and they are only summed
+// when read. Totals read while rendering may be slightly behind. Once a thread has ended, its
+// counters are added to the retired totals and its context is dropped, so pools that replace
+// their threads don't keep every context they ever made.
+//
+// The counters can be read through JMX once registerMBean has been called, and written to
+// a CSV file or standard output every so often with startLog.
+public final class Metrics implements MetricsMBean {
+    // Progressive passes deeper than this are timed together with it.
+    public static final int MAX_DEPTH = 16;
+
+    // The contexts of threads that may still be running, each with its thread, and the
+    // totals of the contexts of threads that have ended. Both are guarded by the class lock.
+    private static final List<Registration> contexts = new ArrayList<Registration>();
+    private static final Totals retired = new Totals();
+    private static int retiredThreads;
+    private static final AtomicLongArray passNanos = new AtomicLongArray(MAX_DEPTH + 1);
+    private static final AtomicLongArray passCounts = new AtomicLongArray(MAX_DEPTH + 1);
+    private static final AtomicLong abortedPasses = new AtomicLong();
+    private static final AtomicLong frames = new AtomicLong();
+
+    private static final String CSV_HEADER =
+        "time,rays,primary_rays,reflection_rays,refraction_rays,shadow_rays," +
+        "average_bounces,intersection_tests_per_ray,frames,passes,aborted_passes";
+
+    // Totals of the per-thread counters at one moment.
+    public static final class Totals {
+        public long rays;
+        public long reflectionRays;
+        public long refractionRays;
+        public long shadowRays;
+        public long paths;
+        public long bounces;
+        public long intersectionTests;
+        public long samples;
+
+        // Rays that weren't cast for a bounce or a shadow are the first rays of paths.
+        public long primaryRays() {
+            return rays - reflectionRays - refractionRays - shadowRays;
+        }
+
+        public double averageBounces() {
+            return paths == 0 ? 0 : (double)bounces / paths;
+        }
+
+        public double intersectionTestsPerRay() {
+            return rays == 0 ? 0 : (double)intersectionTests / rays;
+        }
+    }
+
+    private static final class Registration {
+        final TraceContext ctx;
+        final WeakReference<Thread> thread;
+
+        Registration(TraceContext ctx, Thread thread) {
+            this.ctx = ctx;
+            this.thread = new WeakReference<Thread>(thread);
+        }
+    }
+
+    private Metrics() {
+    }
+
+    // Called by TraceContext for each new context, on the thread it belongs to.
+    static synchronized void register(TraceContext ctx) {
+        retire();
+        contexts.add(new Registration(ctx, Thread.currentThread()));
+    }
+
+    // Adds the counters of contexts whose threads have ended to the retired totals and
+    // forgets them. An ended thread's writes are all visible once isAlive returns false.
+    private static void retire() {
+        Iterator<Registration> it = contexts.iterator();
+        while (it.hasNext()) {
+            Registration registration = it.next();
+            Thread thread = registration.thread.get();
+            if (thread == null || !thread.isAlive()) {
+                add(retired, registration.ctx);
+                retiredThreads++;
+                it.remove();
+            }
+        }
+    }
+
+    private static void add(Totals totals, TraceContext ctx) {
+        totals.rays += ctx.rays;
+        totals.reflectionRays += ctx.reflectionRays;
+        totals.refractionRays += ctx.refractionRays;
+        totals.shadowRays += ctx.shadowRays;
+        totals.paths += ctx.paths;
+        totals.bounces += ctx.bounces;
+        totals.intersectionTests += ctx.intersectionTests;
+        totals.samples += ctx.samples;
+    }
+
+    private static void add(Totals totals, Totals more) {
+        totals.rays += more.rays;
+        totals.reflectionRays += more.reflectionRays;
+        totals.refractionRays += more.refractionRays;
+        totals.shadowRays += more.shadowRays;
+        totals.paths += more.paths;
+        totals.bounces += more.bounces;
+        totals.intersectionTests += more.intersectionTests;
+        totals.samples += more.samples;
+    }
+
+    // Records the time a progressive pass at the given depth took.
+    public static void recordPass(int depth, long nanos) {
+        int i = Math.min(Math.max(depth, 0), MAX_DEPTH);
+        passNanos.addAndGet(i, nanos);
+        passCounts.incrementAndGet(i);
+    }
+
+    public static void recordAbortedPass() {
+        abortedPasses.incrementAndGet();
+    }
+
+    public static void recordFrame() {
+        frames.incrementAndGet();
+    }
+
+    public static synchronized Totals totals() {
+        retire();
+        Totals totals = new Totals();
+        add(totals, retired);
+        for (Registration registration : contexts) {
+            add(totals, registration.ctx);
+        }
+        return totals;
+    }
+
+    // Makes the counters readable through the platform MBean server as RayTracer:type=Metrics.
+    public static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Metrics(), new ObjectName("RayTracer:type=Metrics"));
+        } catch (JMException e) {
+            System.out.println("Could not register metrics MBean: " + e);
+        }
+    }
+
+    // Appends a CSV row of the totals to a file, or prints it to standard output if the file
+    // is "-", every interval from now on. The header is written first.
+    public static void startLog(String file, long intervalMillis) throws IOException {
+        final PrintStream out = file.equals("-") ? System.out : new PrintStream(new FileOutputStream(file, true), true);
+        out.println(CSV_HEADER);
+        Timer timer = new Timer("metrics", true);
+        timer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                out.println(csvRow());
+            }
+        }, intervalMillis, intervalMillis);
+    }
+
+    private static String csvRow() {
+        Totals totals = totals();
+        return String.format(Locale.ROOT, "%d,%d,%d,%d,%d,%d,%.3f,%.2f,%d,%d,%d",
+            System.currentTimeMillis(), totals.rays, totals.primaryRays(), totals.reflectionRays,
+            totals.refractionRays, totals.shadowRays, totals.averageBounces(),
+            totals.intersectionTestsPerRay(), frames.get(), passes(), abortedPasses.get());
+    }
+
+    private static long passes() {
+        long passes = 0;
+        for (int i = 0; i <= MAX_DEPTH; i++) {
+            passes += passCounts.get(i);
+        }
+        return passes;
+    }
+
+    @Override
+    public long getRays() {
+        return totals().rays;
+    }
+
+    @Override
+    public long getPrimaryRays() {
+        return totals().primaryRays();
+    }
+
+    @Override
+    public long getReflectionRays() {
+        return totals().reflectionRays;
+    }
+
+    @Override
+    public long getRefractionRays() {
+        return totals().refractionRays;
+    }
+
+    @Override
+    public long getShadowRays() {
+        return totals().shadowRays;
+    }
+
+    @Override
+    public double getAverageBounces() {
+        return totals().averageBounces();
+    }
+
+    @Override
+    public long getIntersectionTests() {
+        return totals().intersectionTests;
+    }
+
+    @Override
+    public double getIntersectionTestsPerRay() {
+        return totals().intersectionTestsPerRay();
+    }
+
+    @Override
+    public long getFrames() {
+        return frames.get();
+    }
+
+    @Override
+    public long getPasses() {
+        return passes();
+    }
+
+    @Override
+    public long getAbortedPasses() {
+        return abortedPasses.get();
+    }
+
+    @Override
+    public double[] getPassMillis() {
+        double[] millis = new double[MAX_DEPTH + 1];
+        for (int i = 0; i <= MAX_DEPTH; i++) {
+            long count = passCounts.get(i);
+            millis[i] = count == 0 ? 0 : passNanos.get(i) / 1e6 / count;
+        }
+        return millis;
+    }
+
+    @Override
+    public String[] getThreadSamples() {
+        List<String> samples = new ArrayList<String>();
+        synchronized (Metrics.class) {
+            retire();
+            for (Registration registration : contexts) {
+                samples.add(registration.ctx.thread + ": " + registration.ctx.samples);
+            }
+            if (retiredThreads > 0) {
+                samples.add(retiredThreads + " ended threads: " + retired.samples);
+            }
+        }
+        return samples.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,32 @@
+// Management interface of Metrics, so the counters can be watched with JConsole or any
+// other JMX client. All values are totals since the program started.
+public interface MetricsMBean {
+    long getRays();
+
+    long getPrimaryRays();
+
+    long getReflectionRays();
+
+    long getRefractionRays();
+
+    long getShadowRays();
+
+    double getAverageBounces();
+
+    long getIntersectionTests();
+
+    double getIntersectionTestsPerRay();
+
+    long getFrames();
+
+    long getPasses();
+
+    long getAbortedPasses();
+
+    // Average time in milliseconds of a progressive pass at each depth, or 0 for depths
+    // that never ran.
+    double[] getPassMillis();
+
+    // Samples rendered by each thread, as "name: count".
+    String[] getThreadSamples();
+}
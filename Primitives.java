@@ -0,0 +1,82 @@
+// Packed copies of a list of entities' geometry in flat arrays. A sphere or cube is read
+// from a few consecutive doubles instead of through the entity and its Vector3 objects, so
+// testing a run of neighbouring entities touches contiguous memory. Entities of other
+// types are tested through Entity.intersect.
+public final class Primitives {
+    static final byte SPHERE = 0;
+    static final byte CUBE = 1;
+    static final byte OTHER = 2;
+
+    // The entities the arrays were built from, in the same order.
+    final Entity[] entities;
+    final byte[] kinds;
+    // Three doubles per primitive: center x, y, z.
+    final double[] centers;
+    // Radius of a sphere, or half the side length of a cube.
+    final double[] extents;
+    // Surface ordinal of each primitive, or -1 if it has none, so shadow rays can skip
+    // transparent entities without reading them.
+    final byte[] surfaces;
+
+    public Primitives(Entity[] entities) {
+        int n = entities.length;
+        this.entities = entities;
+        kinds = new byte[n];
+        centers = new double[n * 3];
+        extents = new double[n];
+        surfaces = new byte[n];
+        for (int i = 0; i < n; i++) {
+            update(i);
+        }
+    }
+
+    // Copies the current geometry and surface of entities[i] into the arrays again, after
+    // it has been changed.
+    public void update(int i) {
+        Entity entity = entities[i];
+        centers[i * 3] = entity.position.x();
+        centers[i * 3 + 1] = entity.position.y();
+        centers[i * 3 + 2] = entity.position.z();
+        if (entity instanceof Sphere) {
+            kinds[i] = SPHERE;
+            extents[i] = ((Sphere)entity).radius;
+        } else if (entity instanceof Cube) {
+            kinds[i] = CUBE;
+            extents[i] = ((Cube)entity).sideLength / 2;
+        } else {
+            kinds[i] = OTHER;
+        }
+        surfaces[i] = (byte)(entity.surface == null ? -1 : entity.surface.ordinal());
+    }
+
+    public boolean isTransparent(int i) {
+        return surfaces[i] == Surface.Transparent.ordinal();
+    }
+
+    public int size() {
+        return kinds.length;
+    }
+
+    // Same as entities[i].intersect. ix, iy and iz are the inverse of the ray's direction.
+    public double intersect(int i, double ox, double oy, double oz, double dx, double dy, double dz,
+            double ix, double iy, double iz) {
+        int c = i * 3;
+        switch (kinds[i]) {
+        case SPHERE:
+            return Sphere.intersect(centers[c], centers[c + 1], centers[c + 2], extents[i], ox, oy, oz, dx, dy, dz);
+        case CUBE:
+            return Cube.intersect(centers[c], centers[c + 1], centers[c + 2], extents[i], ox, oy, oz, ix, iy, iz);
+        default:
+            return entities[i].intersect(ox, oy, oz, dx, dy, dz);
+        }
+    }
+
+    // Same as entities[i].occludes.
+    public boolean occludes(int i, double ox, double oy, double oz, double dx, double dy, double dz,
+            double ix, double iy, double iz, double maxDistance) {
+        if (kinds[i] == OTHER) {
+            return entities[i].occludes(ox, oy, oz, dx, dy, dz, maxDistance);
+        }
+        return intersect(i, ox, oy, oz, dx, dy, dz, ix, iy, iz) <= maxDistance;
+    }
+}
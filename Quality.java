@@ -0,0 +1,23 @@
+// Limits on how much work goes into shading a path. FULL leaves the scene as it is, while
+// PREVIEW is a much cheaper approximation for showing something while the camera moves.
+public final class Quality {
+    public static final Quality FULL = new Quality(Integer.MAX_VALUE, Integer.MAX_VALUE, true);
+    // One bounce, so mirrors still show something, one shadow ray per point, and textures
+    // replaced with their average color.
+    public static final Quality PREVIEW = new Quality(1, 1, false);
+
+    // Reflections and refractions followed before the last hit is shaded as it is. The
+    // scene's own limit applies as well.
+    public final int maxBounces;
+    // Shadow rays cast per shaded point. Lights past this many light the point as if
+    // nothing were in the way.
+    public final int maxShadowRays;
+    // Whether textures are sampled. Otherwise each texture's average color is used.
+    public final boolean textures;
+
+    public Quality(int maxBounces, int maxShadowRays, boolean textures) {
+        this.maxBounces = maxBounces;
+        this.maxShadowRays = maxShadowRays;
+        this.textures = textures;
+    }
+}
@@ -0,0 +1,128 @@
+// A bundle of rays that are traced through the BVH together. Rays from neighbouring pixels
+// are coherent, so they tend to visit the same nodes and entities, and testing them together
+// pays for each node fetch once per packet instead of once per ray. Lanes are stored as
+// separate arrays so the per-lane loops are simple strided loops over doubles, which
+// VectorPacket runs with the Vector API when it is available.
+public final class RayPacket {
+    public static final int SIZE = 16;
+    // Whether the JVM was started with "--add-modules jdk.incubator.vector", so the lanes
+    // can be tested by VectorPacket.
+    public static final boolean VECTOR_API = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+    private static final ThreadLocal<RayPacket> packets = new ThreadLocal<RayPacket>() {
+        @Override
+        protected RayPacket initialValue() {
+            return new RayPacket();
+        }
+    };
+
+    // Number of lanes in use.
+    public int count;
+
+    // Origin and normalized direction of each ray, and the inverse direction.
+    public final double[] ox = new double[SIZE];
+    public final double[] oy = new double[SIZE];
+    public final double[] oz = new double[SIZE];
+    public final double[] dx = new double[SIZE];
+    public final double[] dy = new double[SIZE];
+    public final double[] dz = new double[SIZE];
+    final double[] ix = new double[SIZE];
+    final double[] iy = new double[SIZE];
+    final double[] iz = new double[SIZE];
+
+    // The closest entity hit by each ray and the distance to it.
+    public final Entity[] entity = new Entity[SIZE];
+    public final double[] distance = new double[SIZE];
+    // Resulting color of each ray, and the pixel it belongs to for the caller's use.
+    public final int[] colors = new int[SIZE];
+    public final int[] x = new int[SIZE];
+    public final int[] y = new int[SIZE];
+
+    // Distance at which each ray enters the node being visited.
+    final double[] enter = new double[SIZE];
+    int[] stack = new int[64];
+    // When set, the lanes are tested by VectorPacket instead of the loops below. Only
+    // cleared to compare the two.
+    public boolean vectors = VECTOR_API;
+
+    private RayPacket() {
+    }
+
+    // Returns the packet belonging to the calling thread.
+    public static RayPacket get() {
+        return packets.get();
+    }
+
+    // Adds the context's ray as a new lane and returns false if the packet is full.
+    public boolean add(TraceContext ctx, int x, int y) {
+        if (count == SIZE) {
+            return false;
+        }
+        int i = count++;
+        ox[i] = ctx.ox;
+        oy[i] = ctx.oy;
+        oz[i] = ctx.oz;
+        dx[i] = ctx.dx;
+        dy[i] = ctx.dy;
+        dz[i] = ctx.dz;
+        ix[i] = 1 / ctx.dx;
+        iy[i] = 1 / ctx.dy;
+        iz[i] = 1 / ctx.dz;
+        this.x[i] = x;
+        this.y[i] = y;
+        return true;
+    }
+
+    public void clear() {
+        count = 0;
+    }
+
+    // Stores the distance at which each ray enters a box, given as six doubles from b on
+    // as in BVH, or positive infinity if it misses the box or enters it beyond its closest
+    // hit so far. Returns false if no ray enters the box.
+    boolean enter(double[] bounds, int b) {
+        double minX = bounds[b];
+        double minY = bounds[b + 1];
+        double minZ = bounds[b + 2];
+        double maxX = bounds[b + 3];
+        double maxY = bounds[b + 4];
+        double maxZ = bounds[b + 5];
+        boolean any = false;
+        for (int i = 0; i < count; i++) {
+            double t1 = (minX - ox[i]) * ix[i];
+            double t2 = (maxX - ox[i]) * ix[i];
+            double tmin = Math.min(t1, t2);
+            double tmax = Math.max(t1, t2);
+            t1 = (minY - oy[i]) * iy[i];
+            t2 = (maxY - oy[i]) * iy[i];
+            tmin = Math.max(tmin, Math.min(t1, t2));
+            tmax = Math.min(tmax, Math.max(t1, t2));
+            t1 = (minZ - oz[i]) * iz[i];
+            t2 = (maxZ - oz[i]) * iz[i];
+            tmin = Math.max(Math.max(tmin, Math.min(t1, t2)), 0);
+            tmax = Math.min(tmax, Math.max(t1, t2));
+            boolean hit = tmax >= 0 && tmin <= tmax && tmin < distance[i];
+            enter[i] = hit ? tmin : Double.POSITIVE_INFINITY;
+            any |= hit;
+        }
+        return any;
+    }
+
+    // Tests the rays that entered the last box against one of the primitives in it, and
+    // makes it the closest hit of those that hit it first. Returns the number of rays tested.
+    int intersect(Primitives primitives, int e, Entity entity) {
+        int tests = 0;
+        for (int i = 0; i < count; i++) {
+            if (enter[i] == Double.POSITIVE_INFINITY) {
+                continue;
+            }
+            tests++;
+            double t = primitives.intersect(e, ox[i], oy[i], oz[i], dx[i], dy[i], dz[i], ix[i], iy[i], iz[i]);
+            if (t < distance[i]) {
+                distance[i] = t;
+                this.entity[i] = entity;
+            }
+        }
+        return tests;
+    }
+}
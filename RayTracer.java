@@ -1,11 +1,15 @@
 import javax.swing.JPanel;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.awt.Dimension;
 import java.awt.Graphics;
-import java.awt.Graphics2D;
-import java.awt.Color;
-import java.lang.Thread;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.Semaphore;
 import java.util.Random;
 import java.lang.InterruptedException;
@@ -14,12 +18,72 @@ public final class RayTracer extends JPanel implements Interruptable {
     public Scene scene;
     public Input input;
 
+    // Frames are rendered straight into the pixels of the back buffer, image. They are shown
+    // by copying them into the spare buffer and swapping it with the displayed one, so paint
+    // never sees a pass half written and only waits for the swap itself.
     private BufferedImage image;
+    private int[] pixels;
+    private BufferedImage displayed;
+    private BufferedImage spare;
+    private final Object displayLock = new Object();
     private int[][] pixelCache;
-    private int[] threadWork;
+    // Entity hit by the ray through each cached pixel, or null if it hit nothing, and the
+    // point it hit, three floats per pixel.
+    private Entity[][] entityCache;
+    private float[][] pointCache;
     private AtomicInteger pixelsLeft;
 
-    private boolean progressiveAbort;
+    // The image is cut into 4^TILE_DEPTH tiles which are rendered by a work-stealing pool
+    // that lives as long as the ray tracer, rather than starting new threads every pass.
+    private static final int TILE_DEPTH = 4;
+    private final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    private int[][] tiles;
+    // Number of pixels each tile rendered during the last pass.
+    private int[] tileWork;
+
+    private volatile boolean progressiveAbort;
+
+    // When set, primary rays are traced in packets of the 4^PACKET_DEPTH samples of
+    // neighbouring rectangles instead of one at a time.
+    public boolean packetTracing;
+    private static final int PACKET_DEPTH = 2;
+
+    // When set, a frame that finishes rendering while the camera is still gets another pass
+    // that supersamples the pixels on edges. See Antialiasing.
+    public boolean antialiasing;
+    public int antialiasThreshold = Antialiasing.DEFAULT_THRESHOLD;
+
+    // When set, the pixels of the last frame are reused after the camera moves. A pixel's ray
+    // is still cast, but if it lands on a diffuse surface close to a point that the last
+    // frame already shaded, that color is reused instead of tracing shadows and reflections.
+    // Diffuse shading doesn't depend on where it is seen from, so the color is still right
+    // up to the distance between the points. Reused pixels are traced properly once the
+    // camera stops.
+    public boolean reprojection = true;
+    // The caches of the last frame and the camera it was rendered from, or null if there is
+    // no last frame to reuse.
+    private Camera previousCamera;
+    private int[][] previousPixels;
+    private Entity[][] previousEntities;
+    private float[][] previousPoints;
+    // When set, samples rendered while the camera moves are traced at Quality.PREVIEW, and
+    // traced properly once the camera stops.
+    public boolean preview = true;
+    // Quality of the samples rendered by the current pass.
+    private volatile Quality quality = Quality.FULL;
+    // Set for the pixels of this frame whose color is only an approximation, because it was
+    // reused from the last frame or rendered at preview quality.
+    private boolean[][] approximate;
+    private boolean anyApproximate;
+
+    // The camera the last frame was completely rendered from, or null if it wasn't. While
+    // the camera stays there, edits made through Scene's edit methods are shown by tracing
+    // only the pixels they could affect, which are marked in dirty.
+    private Camera renderedCamera;
+    private SceneChanges changes;
+    private boolean[][] dirty;
+    // Number of pixels traced again by the last frame that only showed scene edits.
+    public int changedPixels;
 
     private Dimension size;
 
@@ -28,7 +92,6 @@ public final class RayTracer extends JPanel implements Interruptable {
         this.input = input;
         size = input.newSize;
         pixelsLeft = new AtomicInteger();
-        threadWork = new int[4];
         setSize(size);
     }
 
@@ -40,11 +103,33 @@ public final class RayTracer extends JPanel implements Interruptable {
     @Override
     public void paint(Graphics g) {
         super.paint(g);
-        if (image != null) {
-            g.drawImage(image, 0, 0, this);
+        synchronized (displayLock) {
+            if (displayed != null) {
+                g.drawImage(displayed, 0, 0, this);
+            }
         }
     }
 
+    // Shows the pixels rendered so far.
+    private void present() {
+        System.arraycopy(pixels, 0, getPixels(spare), 0, pixels.length);
+        synchronized (displayLock) {
+            BufferedImage shown = displayed;
+            displayed = spare;
+            spare = shown;
+        }
+        repaint();
+    }
+
+    // Returns a copy of the pixels of the frame rendered last, row by row.
+    public int[] getFrame() {
+        return pixels.clone();
+    }
+
+    private static int[] getPixels(BufferedImage image) {
+        return ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+    }
+
     public void update() {
         if (!input.newSize.equals(size)) {
             size = input.newSize;
@@ -61,37 +146,121 @@ public final class RayTracer extends JPanel implements Interruptable {
         double timeSpent = 0.0;
         int depth = 7;
         progressiveAbort = false;
+        Metrics.recordFrame();
+        scene.makePostedEdits();
+        SceneChanges changes = scene.takeChanges();
+        if (!changes.isEmpty()) {
+            // The last frame shows the scene as it was before, so none of it can be reused
+            // for a new view.
+            clearHistory();
+            if (renderedCamera != null && sameView(renderedCamera, scene.camera)) {
+                return renderChanges(changes);
+            }
+        }
         boolean moving;
         do {
             long t1 = System.nanoTime();
             render(depth);
-            repaint();
+            present();
             long t2 = System.nanoTime();
             timeSpent += (double)(t2 - t1) / 1.0e9;
+            Metrics.recordPass(depth, t2 - t1);
+            if (progressiveAbort) {
+                Metrics.recordAbortedPass();
+            }
             depth++;
             moving = input.moving();
         } while (pixelsLeft() > 0 && (timeSpent <= 1 / fps && moving || !progressiveAbort && !moving));
         boolean renderComplete = (pixelsLeft() == 0);
+        if (renderComplete && anyApproximate && !moving) {
+            renderComplete = runPass(REFINE);
+            present();
+        }
+        if (renderComplete && antialiasing && !moving) {
+            renderComplete = runPass(ANTIALIAS);
+            present();
+        }
+        renderedCamera = renderComplete ? copyCamera(scene.camera) : null;
         reset();
         return renderComplete;
     }
 
+    // Brings the last frame up to date with scene edits by tracing again only the pixels
+    // they could affect. Returns false if it was interrupted, in which case the next call
+    // renders the frame from scratch.
+    private boolean renderChanges(SceneChanges changes) {
+        // Take back the caches of the last frame, which reset put aside.
+        swapCaches();
+        this.changes = changes;
+        quality = Quality.FULL;
+        boolean renderComplete = runPass(CHANGES);
+        if (renderComplete && antialiasing) {
+            renderComplete = runPass(CHANGES_ANTIALIAS);
+        }
+        present();
+        this.changes = null;
+        changedPixels = 0;
+        for (boolean[] column : dirty) {
+            for (boolean d : column) {
+                if (d) {
+                    changedPixels++;
+                }
+            }
+        }
+        if (!renderComplete) {
+            renderedCamera = null;
+        }
+        reset();
+        return renderComplete;
+    }
+
+    private static boolean sameView(Camera a, Camera b) {
+        return a.position.minus(b.position).lengthSquared() < 1e-18 &&
+            a.direction.minus(b.direction).lengthSquared() < 1e-18 &&
+            a.fov == b.fov && a.size == b.size;
+    }
+
+    private static Camera copyCamera(Camera camera) {
+        return new Camera(camera.position, camera.direction, camera.fov, camera.size);
+    }
+
 
     private void updateSize() {
-        BufferedImage newImage = new BufferedImage((int)size.getWidth(), (int)size.getHeight(), BufferedImage.TYPE_INT_RGB);
+        int width = (int)size.getWidth();
+        int height = (int)size.getHeight();
+        BufferedImage newImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] newPixels = getPixels(newImage);
         if (image != null) {
-            for (int y = 0; y < image.getHeight() && y < newImage.getHeight(); y++) {
-                for (int x = 0; x < image.getWidth() && x < newImage.getWidth(); x++) {
-                    newImage.setRGB(x, y, image.getRGB(x, y));
-                }
+            int oldWidth = image.getWidth();
+            int copyWidth = Math.min(oldWidth, width);
+            for (int y = 0; y < image.getHeight() && y < height; y++) {
+                System.arraycopy(pixels, y * oldWidth, newPixels, y * width, copyWidth);
             }
         }
         image = newImage;
-        pixelCache = new int[image.getWidth()][];
-        for (int x = 0; x < image.getWidth(); x++) {
-            pixelCache[x] = new int[image.getHeight()];
+        pixels = newPixels;
+        BufferedImage newDisplayed = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        System.arraycopy(pixels, 0, getPixels(newDisplayed), 0, pixels.length);
+        synchronized (displayLock) {
+            displayed = newDisplayed;
+            spare = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
         }
+        pixelCache = new int[width][height];
+        entityCache = new Entity[width][height];
+        pointCache = new float[width][height * 3];
+        previousPixels = new int[width][height];
+        previousEntities = new Entity[width][height];
+        previousPoints = new float[width][height * 3];
+        approximate = new boolean[width][height];
+        dirty = new boolean[width][height];
+        renderedCamera = null;
+        List<int[]> tileList = new ArrayList<int[]>();
+        cutTiles(TILE_DEPTH, 0, 0, image.getWidth(), image.getHeight(), tileList);
+        tiles = tileList.toArray(new int[0][]);
+        tileWork = new int[tiles.length];
         reset();
+        // The pixels of the last frame were for a different size.
+        previousCamera = null;
     }
 
     private int pixelsLeft() {
@@ -99,103 +268,231 @@ public final class RayTracer extends JPanel implements Interruptable {
     }
 
     private void render(int depth) {
-        int mx = image.getWidth() / 2;
-        int my = image.getHeight() / 2;
-        final int d = depth - 1;
-        Thread[] threads = new Thread[]{
-            new Thread() {
-                @Override
-                public void run() {
-                    Graphics2D g = image.createGraphics();
-                    renderDepth(d, 0, 0, mx, my, g, 0);
-                    g.dispose();
-                }
-            },
-            new Thread() {
-                @Override
-                public void run() {
-                    Graphics2D g = image.createGraphics();
-                    renderDepth(d, mx, 0, image.getWidth(), my, g, 1);
-                    g.dispose();
-                }
-            },
-            new Thread() {
-                @Override
-                public void run() {
-                    Graphics2D g = image.createGraphics();
-                    renderDepth(d, 0, my, mx, image.getHeight(), g, 2);
-                    g.dispose();
-                }
-            },
-            new Thread() {
-                @Override
-                public void run() {
-                    Graphics2D g = image.createGraphics();
-                    renderDepth(d, mx, my, image.getWidth(), image.getHeight(), g, 3);
-                    g.dispose();
-                }
-            }
-        };
-        // Sort threads by how much work they were able to do last frame.
-        // This way quadrant threads who didn't get as much work done get
-        // to start first.
-        for (int i = threads.length - 1; i > 0; i--) {
-            for (int j = 0; j < i; j++) {
-                if (threadWork[j] > threadWork[j + 1]) {
-                    int tw = threadWork[j];
-                    threadWork[j] = threadWork[j + 1];
-                    threadWork[j + 1] = tw;
-                    Thread t = threads[j];
-                    threads[j] = threads[j + 1];
-                    threads[j + 1] = t;
-                }
-            }
+        // Drop to preview quality while the camera moves. Once it stops, waitForInput would
+        // block, so the remaining samples of the frame are worth rendering properly.
+        quality = preview && input.moving() ? Quality.PREVIEW : Quality.FULL;
+        // Tiles are cut the same way renderDepth subdivides, so each tile only needs the
+        // remaining levels. Progressive rendering starts at depth 7 and only goes deeper, so
+        // depth is always above TILE_DEPTH and every tile has at least three levels left.
+        pool.invoke(new TileTask(sortTiles(), 0, tiles.length, depth - TILE_DEPTH, RENDER));
+    }
+
+    // Passes over a completely rendered frame. REFINE traces the pixels that were reused from
+    // the last frame or rendered at preview quality, and ANTIALIAS supersamples the edges.
+    // CHANGES traces the pixels that scene edits could affect, and CHANGES_ANTIALIAS
+    // supersamples the edges among and around them.
+    private static final int RENDER = 0;
+    private static final int REFINE = 1;
+    private static final int ANTIALIAS = 2;
+    private static final int CHANGES = 3;
+    private static final int CHANGES_ANTIALIAS = 4;
+
+    // Runs one of the passes over a completely rendered frame. Returns false if it was
+    // interrupted.
+    private boolean runPass(int pass) {
+        pool.invoke(new TileTask(sortTiles(), 0, tiles.length, 0, pass));
+        if (progressiveAbort) {
+            Metrics.recordAbortedPass();
+            return false;
+        }
+        return true;
+    }
+
+    private int[] sortTiles() {
+        // Order tiles by how much work they needed last pass so the expensive ones are
+        // started first and cheap ones fill in the gaps at the end.
+        Integer[] order = new Integer[tiles.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
         }
-        for (int i = 0; i < threadWork.length; i++) {
-            threadWork[i] = 0;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Integer.compare(tileWork[b], tileWork[a]);
+            }
+        });
+        int[] tileOrder = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            tileOrder[i] = order[i];
+            tileWork[i] = 0;
         }
-        for (Thread thread : threads) {
-            thread.start();
+        return tileOrder;
+    }
+
+    // Runs a pass over a range of tiles, splitting the range in half until a single tile is
+    // left so that idle workers can steal the other halves. The RENDER pass renders the
+    // tiles down to the given depth.
+    private final class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int[] order;
+        private final int from;
+        private final int to;
+        private final int depth;
+        private final int pass;
+
+        TileTask(int[] order, int from, int to, int depth, int pass) {
+            this.order = order;
+            this.from = from;
+            this.to = to;
+            this.depth = depth;
+            this.pass = pass;
         }
-        try {
-            for (Thread thread : threads) {
-                thread.join();
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(
+                    new TileTask(order, from, mid, depth, pass),
+                    new TileTask(order, mid, to, depth, pass)
+                );
+                return;
+            }
+            int tile = order[from];
+            int[] t = tiles[tile];
+            if (pass == REFINE) {
+                refineRect(t[0], t[1], t[2], t[3], tile);
+                return;
+            }
+            if (pass == ANTIALIAS || pass == CHANGES_ANTIALIAS) {
+                antialiasRect(t[0], t[1], t[2], t[3], tile, pass == CHANGES_ANTIALIAS);
+                return;
+            }
+            if (pass == CHANGES) {
+                changesRect(t[0], t[1], t[2], t[3], tile);
+                return;
             }
-        } catch(Exception e) {
+            renderDepth(depth, t[0], t[1], t[2], t[3], tile);
         }
     }
 
+    // Splits a rectangle the same way renderDepth does and collects the pieces.
+    private static void cutTiles(int depth, int x1, int y1, int x2, int y2, List<int[]> tiles) {
+        if (depth == 0) {
+            tiles.add(new int[]{x1, y1, x2, y2});
+            return;
+        }
+        int mx = (x2 - x1)/2 + x1;
+        int my = (y2 - y1)/2 + y1;
+        depth--;
+        cutTiles(depth, x1, y1, mx, my, tiles);
+        cutTiles(depth, mx, y1, x2, my, tiles);
+        cutTiles(depth, x1, my, mx, y2, tiles);
+        cutTiles(depth, mx, my, x2, y2, tiles);
+    }
+
+    // Starts a new frame. The caches of the frame just finished are kept for reprojection,
+    // along with the camera they were rendered from, since the camera is moved next.
     private void reset() {
+        swapCaches();
+        Camera camera = scene.camera;
+        previousCamera = reprojection ? new Camera(camera.position, camera.direction, camera.fov, camera.size) : null;
         for (int x = 0; x < image.getWidth(); x++) {
             for (int y = 0; y < image.getHeight(); y++) {
                 pixelCache[x][y] = -1;
+                approximate[x][y] = false;
             }
         }
+        anyApproximate = false;
         pixelsLeft.set(image.getWidth() * image.getHeight());
     }
 
-    private void renderDepth(int depth, int x1, int y1, int x2, int y2, Graphics2D g, int thread) {
+    // Exchanges the caches of this frame with those of the last.
+    private void swapCaches() {
+        int[][] pixels = previousPixels;
+        previousPixels = pixelCache;
+        pixelCache = pixels;
+        Entity[][] entities = previousEntities;
+        previousEntities = entityCache;
+        entityCache = entities;
+        float[][] points = previousPoints;
+        previousPoints = pointCache;
+        pointCache = points;
+    }
+
+    // Drops the last frame so that nothing is reused from it, for when the scene itself has
+    // changed rather than just the camera.
+    public void clearHistory() {
+        previousCamera = null;
+    }
+
+    private void renderDepth(int depth, int x1, int y1, int x2, int y2, int tile) {
         // I can't remember why I did this, it's to prevent stuttering and tearing or something.
-        if (depth > 5 && progressiveAbort) {
+        // depth counts the levels left within the tile, so the levels cut into tiles are
+        // added back to compare against the depth of the whole frame. Queued tiles of a pass
+        // deeper than 5 return here as soon as the pass is aborted.
+        if (depth + TILE_DEPTH > 5 && progressiveAbort) {
             return;
         }
         if (depth == 0) {
-            renderRect(x1, y1, x2, y2, g, thread);
+            renderRect(x1, y1, x2, y2, tile);
             return;
         }
+        if (packetTracing && depth == PACKET_DEPTH) {
+            // Trace the samples of all the rectangles below as one packet first, so the
+            // rectangles only have to be filled in from the cache afterwards.
+            RayPacket packet = RayPacket.get();
+            packet.clear();
+            TraceContext ctx = TraceContext.get();
+            ctx.quality = quality;
+            gatherPacket(depth, x1, y1, x2, y2, packet);
+            scene.getRayColors(packet);
+            for (int i = 0; i < packet.count; i++) {
+                int x = packet.x[i];
+                int y = packet.y[i];
+                pixelCache[x][y] = packet.colors[i];
+                entityCache[x][y] = packet.entity[i];
+                if (quality != Quality.FULL) {
+                    approximate[x][y] = true;
+                    anyApproximate = true;
+                }
+                if (packet.entity[i] != null) {
+                    double t = packet.distance[i];
+                    storePoint(x, y, packet.ox[i] + packet.dx[i]*t, packet.oy[i] + packet.dy[i]*t, packet.oz[i] + packet.dz[i]*t);
+                }
+            }
+            pixelsLeft.addAndGet(-packet.count);
+            tileWork[tile] += packet.count;
+            ctx.samples += packet.count;
+        }
         int mx = (x2 - x1)/2 + x1;
         int my = (y2 - y1)/2 + y1;
         depth--;
-        renderDepth(depth, x1, y1, mx, my, g, thread);
-        renderDepth(depth, mx, y1, x2, my, g, thread);
-        renderDepth(depth, x1, my, mx, y2, g, thread);
-        renderDepth(depth, mx, my, x2, y2, g, thread);
+        renderDepth(depth, x1, y1, mx, my, tile);
+        renderDepth(depth, mx, y1, x2, my, tile);
+        renderDepth(depth, x1, my, mx, y2, tile);
+        renderDepth(depth, mx, my, x2, y2, tile);
         if (progressiveAbort) {
             return;
         }
     }
 
-    private void renderRect(int x1, int y1, int x2, int y2, Graphics2D g, int thread) {
+    // Adds the camera rays for the uncached samples of the rectangles renderDepth would
+    // render to a packet.
+    private void gatherPacket(int depth, int x1, int y1, int x2, int y2, RayPacket packet) {
+        if (depth == 0) {
+            if (x2 <= x1 || y2 <= y1) {
+                return;
+            }
+            int mx = (x2 - x1)/2 + x1;
+            int my = (y2 - y1)/2 + y1;
+            if (pixelCache[mx][my] == -1) {
+                TraceContext ctx = TraceContext.get();
+                getCameraRay(mx, my, ctx);
+                packet.add(ctx, mx, my);
+            }
+            return;
+        }
+        int mx = (x2 - x1)/2 + x1;
+        int my = (y2 - y1)/2 + y1;
+        depth--;
+        gatherPacket(depth, x1, y1, mx, my, packet);
+        gatherPacket(depth, mx, y1, x2, my, packet);
+        gatherPacket(depth, x1, my, mx, y2, packet);
+        gatherPacket(depth, mx, my, x2, y2, packet);
+    }
+
+    private void renderRect(int x1, int y1, int x2, int y2, int tile) {
         if (x2 <= x1 || y2 <= y1) {
             return;
         }
@@ -203,22 +500,247 @@ public final class RayTracer extends JPanel implements Interruptable {
         int my = (y2 - y1)/2 + y1;
         int color = pixelCache[mx][my];
         if (color == -1) {
-            color = getRenderedColor(mx, my);
+            color = renderSample(mx, my, Math.max(x2 - x1, y2 - y1));
             pixelCache[mx][my] = color;
             pixelsLeft.decrementAndGet();
-            threadWork[thread]++;
+            tileWork[tile]++;
+        }
+        int width = image.getWidth();
+        for (int y = y1; y < y2; y++) {
+            Arrays.fill(pixels, y * width + x1, y * width + x2, color);
+        }
+    }
+
+    // Renders the sample for a pixel, which stands for a square of the given size in pixels
+    // until finer samples are rendered, and stores its hit in the caches. The color is
+    // reused from the last frame where possible.
+    private int renderSample(int x, int y, int size) {
+        TraceContext ctx = TraceContext.get();
+        ctx.quality = quality;
+        ctx.samples++;
+        getCameraRay(x, y, ctx);
+        if (!scene.castRay(ctx)) {
+            entityCache[x][y] = null;
+            return 0x000000;
+        }
+        entityCache[x][y] = ctx.entity;
+        storePoint(x, y, ctx.px, ctx.py, ctx.pz);
+        if (previousCamera != null && ctx.entity.surface == Surface.Diffuse) {
+            // Allow the points to be as far apart as the square the sample stands for, at
+            // least a pixel and a half.
+            double tolerance = Math.max(size, 1.5) * ctx.spread * (ctx.distance + 1);
+            int color = reprojectedColor(ctx, tolerance);
+            if (color != -1) {
+                approximate[x][y] = true;
+                anyApproximate = true;
+                return color;
+            }
+        }
+        if (ctx.quality != Quality.FULL) {
+            approximate[x][y] = true;
+            anyApproximate = true;
+        }
+        return scene.getCastRayColor(ctx);
+    }
+
+    // Returns the color the last frame rendered for the context's hit point, or -1 if the
+    // last frame saw something else there or didn't render a sample close enough to it.
+    private int reprojectedColor(TraceContext ctx, double tolerance) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        double[] screen = ctx.screen;
+        if (!previousCamera.project(ctx.px, ctx.py, ctx.pz, (double)width / height, screen)) {
+            return -1;
+        }
+        int px = (int)Math.floor(screen[0] * width);
+        int py = (int)Math.floor((1 - screen[1]) * height);
+        if (px < 0 || py < 0 || px >= width || py >= height) {
+            return -1;
+        }
+        // Find the sample the last frame drew this pixel with, which is the center of the
+        // smallest rectangle of the progressive subdivision around the pixel that has one.
+        int x1 = 0;
+        int y1 = 0;
+        int x2 = width;
+        int y2 = height;
+        int sx = -1;
+        int sy = -1;
+        while (x2 > x1 && y2 > y1) {
+            int mx = (x2 - x1)/2 + x1;
+            int my = (y2 - y1)/2 + y1;
+            if (previousPixels[mx][my] != -1) {
+                sx = mx;
+                sy = my;
+            }
+            if (x2 - x1 == 1 && y2 - y1 == 1) {
+                break;
+            }
+            if (px < mx) {
+                x2 = mx;
+            } else {
+                x1 = mx;
+            }
+            if (py < my) {
+                y2 = my;
+            } else {
+                y1 = my;
+            }
+        }
+        if (sx == -1 || previousEntities[sx][sy] != ctx.entity) {
+            return -1;
+        }
+        float[] points = previousPoints[sx];
+        double ex = points[sy * 3] - ctx.px;
+        double ey = points[sy * 3 + 1] - ctx.py;
+        double ez = points[sy * 3 + 2] - ctx.pz;
+        if (ex*ex + ey*ey + ez*ez > tolerance * tolerance) {
+            return -1;
+        }
+        return previousPixels[sx][sy];
+    }
+
+    private void storePoint(int x, int y, double px, double py, double pz) {
+        float[] points = pointCache[x];
+        points[y * 3] = (float)px;
+        points[y * 3 + 1] = (float)py;
+        points[y * 3 + 2] = (float)pz;
+    }
+
+    // Traces the pixels of a rectangle whose colors are only approximations.
+    private void refineRect(int x1, int y1, int x2, int y2, int tile) {
+        for (int y = y1; y < y2; y++) {
+            if (progressiveAbort) {
+                return;
+            }
+            for (int x = x1; x < x2; x++) {
+                if (approximate[x][y]) {
+                    int color = getRenderedColor(x, y);
+                    pixelCache[x][y] = color;
+                    approximate[x][y] = false;
+                    pixels[y * image.getWidth() + x] = color;
+                    tileWork[tile]++;
+                }
+            }
+        }
+    }
+
+    // Traces again the pixels of a rectangle that the scene changes could affect, and marks
+    // them as dirty.
+    private void changesRect(int x1, int y1, int x2, int y2, int tile) {
+        int width = image.getWidth();
+        TraceContext ctx = TraceContext.get();
+        for (int y = y1; y < y2; y++) {
+            if (progressiveAbort) {
+                return;
+            }
+            for (int x = x1; x < x2; x++) {
+                dirty[x][y] = isAffected(x, y, ctx);
+                if (dirty[x][y]) {
+                    int color = renderSample(x, y, 1);
+                    pixelCache[x][y] = color;
+                    pixels[y * width + x] = color;
+                    tileWork[tile]++;
+                }
+            }
+        }
+    }
+
+    // Returns true if the scene changes could have changed what the cached hit of a pixel
+    // looks like.
+    private boolean isAffected(int x, int y, TraceContext ctx) {
+        Entity entity = entityCache[x][y];
+        getCameraRay(x, y, ctx);
+        if (entity == null) {
+            // Something may have appeared where the ray used to miss everything.
+            return changes.crosses(ctx.ox, ctx.oy, ctx.oz, ctx.dx, ctx.dy, ctx.dz, Double.POSITIVE_INFINITY);
+        }
+        if (changes.lights || changes.contains(entity) || entity.surface != Surface.Diffuse) {
+            // Reflected and refracted rays could see the changes from anywhere.
+            return true;
+        }
+        float[] points = pointCache[x];
+        double px = points[y * 3];
+        double py = points[y * 3 + 1];
+        double pz = points[y * 3 + 2];
+        if (changes.crosses(ctx.ox, ctx.oy, ctx.oz, px, py, pz)) {
+            return true;
+        }
+        // Something may have moved into or out of the way of a shadow ray.
+        for (Light light : scene.lights) {
+            Vector3 l = light.position;
+            if (changes.crosses(px, py, pz, l.x(), l.y(), l.z())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Replaces the pixels of a rectangle that lie on an edge, judged from the single-sample
+    // colors in the cache, with supersampled colors. The cache itself is left alone so that
+    // neighbouring tiles still compare against the single samples. If onlyDirty is set, only
+    // dirty pixels and their neighbours are looked at, and those that are no longer on an
+    // edge go back to their single sample.
+    private void antialiasRect(int x1, int y1, int x2, int y2, int tile, boolean onlyDirty) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        TraceContext ctx = TraceContext.get();
+        ctx.quality = Quality.FULL;
+        for (int y = y1; y < y2; y++) {
+            if (progressiveAbort) {
+                return;
+            }
+            for (int x = x1; x < x2; x++) {
+                if (onlyDirty && !nearDirty(x, y, width, height)) {
+                    continue;
+                }
+                if (isEdge(x, y, width, height)) {
+                    pixels[y * width + x] = Antialiasing.supersample(scene, x, y, width, height, ctx);
+                    tileWork[tile] += Antialiasing.GRID * Antialiasing.GRID;
+                    ctx.samples += Antialiasing.GRID * Antialiasing.GRID;
+                } else if (onlyDirty) {
+                    pixels[y * width + x] = pixelCache[x][y];
+                }
+            }
         }
-        g.setColor(new Color(color));
-        g.fillRect(x1, y1, x2 - x1, y2 - y1);
+    }
+
+    private boolean nearDirty(int x, int y, int width, int height) {
+        return dirty[x][y] ||
+            x > 0 && dirty[x - 1][y] ||
+            x < width - 1 && dirty[x + 1][y] ||
+            y > 0 && dirty[x][y - 1] ||
+            y < height - 1 && dirty[x][y + 1];
+    }
+
+    private boolean isEdge(int x, int y, int width, int height) {
+        int color = pixelCache[x][y];
+        Entity entity = entityCache[x][y];
+        return x > 0 && differs(color, entity, x - 1, y) ||
+            x < width - 1 && differs(color, entity, x + 1, y) ||
+            y > 0 && differs(color, entity, x, y - 1) ||
+            y < height - 1 && differs(color, entity, x, y + 1);
+    }
+
+    private boolean differs(int color, Entity entity, int x, int y) {
+        return entityCache[x][y] != entity || Antialiasing.differs(color, pixelCache[x][y], antialiasThreshold);
     }
 
     // Cast a ray into the world from a given pixel location and calculate its resultant color.
     private int getRenderedColor(int x, int y) {
-        Ray3 ray = scene.camera.getRay(
+        TraceContext ctx = TraceContext.get();
+        ctx.quality = Quality.FULL;
+        ctx.samples++;
+        getCameraRay(x, y, ctx);
+        return scene.getRayColor(ctx);
+    }
+
+    private void getCameraRay(int x, int y, TraceContext ctx) {
+        scene.camera.getRay(
             ((double)x + 0.5) / image.getWidth(),
             1 - ((double)y + 0.5)/image.getHeight(),
-            (double)size.getWidth() / size.getHeight()
+            (double)size.getWidth() / size.getHeight(),
+            ctx
         );
-        return scene.getRayColor(ray);
+        ctx.spread = scene.camera.getSampleSpread(image.getWidth());
     }
 }
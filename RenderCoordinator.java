@@ -0,0 +1,293 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+// Renders a still across several processes, possibly on other machines. The coordinator
+// loads the scene, cuts the frame into tiles and waits for workers started with
+// "java Main --worker HOST:PORT" to connect, which they may do at any time. Each worker is
+// sent the scene once in the binary format, then tiles to render, and sends back the
+// pixels of each tile. Workers send a heartbeat every few seconds while they render, so a
+// worker that disconnects or goes quiet for too long has crashed or hung, and its
+// unfinished tiles are handed to the others. If every worker is lost before the render is
+// finished, the render fails.
+//
+// Every message is an int type followed by its data:
+//     SCENE     width, height, byte length, binary scene      coordinator to worker
+//     TILE      tile index, x1, y1, x2, y2                    coordinator to worker
+//     PIXELS    tile index, 0xRRGGBB pixels row by row        worker to coordinator
+//     DONE                                                  coordinator to worker
+//     HEARTBEAT                                             worker to coordinator
+public final class RenderCoordinator {
+    static final int SCENE = 1;
+    static final int TILE = 2;
+    static final int PIXELS = 3;
+    static final int DONE = 4;
+    static final int HEARTBEAT = 5;
+    // How often workers send a heartbeat.
+    static final int HEARTBEAT_MILLIS = 5 * 1000;
+
+    private static final int TILE_SIZE = 128;
+    // Tiles sent to a worker beyond the one it is rendering, so it never waits on the network.
+    private static final int TILES_AHEAD = 1;
+    // A worker that sends nothing back for this long, not even a heartbeat, is treated as
+    // lost however long its tile takes.
+    private static final int TIMEOUT_MILLIS = 6 * HEARTBEAT_MILLIS;
+
+    private final int width;
+    private final int height;
+    private final byte[] scene;
+    private final int[] pixels;
+    private final int tilesX;
+    private final boolean[] done;
+    // Tiles that no worker has been given, or whose worker was lost.
+    private final Deque<Integer> pending = new ArrayDeque<Integer>();
+    private int tilesLeft;
+    private int workers;
+    // Set when the last worker was lost with tiles left to render.
+    private boolean failed;
+
+    public RenderCoordinator(Scene scene, int width, int height) throws IOException {
+        this.width = width;
+        this.height = height;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryScene.write(scene, bytes);
+        this.scene = bytes.toByteArray();
+        pixels = new int[width * height];
+        tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int tileCount = tilesX * ((height + TILE_SIZE - 1) / TILE_SIZE);
+        done = new boolean[tileCount];
+        for (int i = 0; i < tileCount; i++) {
+            pending.add(i);
+        }
+        tilesLeft = tileCount;
+    }
+
+    // Accepts workers on the port until every tile has been rendered, and returns the
+    // framebuffer, one 0xRRGGBB value per pixel row by row. Throws an IOException if
+    // every worker is lost before that.
+    public int[] render(int port) throws IOException {
+        final ServerSocket server = new ServerSocket(port);
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    final Socket socket;
+                    try {
+                        socket = server.accept();
+                    } catch (IOException e) {
+                        // The server socket was closed because the render finished.
+                        return;
+                    }
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    }, "worker " + socket.getRemoteSocketAddress());
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            }
+        }, "acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        synchronized (this) {
+            while (tilesLeft > 0 && !failed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                }
+            }
+        }
+        server.close();
+        if (failed) {
+            throw new IOException("Every worker was lost with " + tilesLeft + " tiles left to render!");
+        }
+        return pixels;
+    }
+
+    // Feeds tiles to one worker until none are left, then tells it to stop.
+    private void serve(Socket socket) {
+        String name = socket.getRemoteSocketAddress().toString();
+        List<Integer> assigned = new ArrayList<Integer>();
+        synchronized (this) {
+            workers++;
+            System.out.printf("Worker %s connected, %d working%n", name, workers);
+        }
+        try {
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+            out.writeInt(SCENE);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(scene.length);
+            out.write(scene);
+            while (true) {
+                while (assigned.size() <= TILES_AHEAD) {
+                    int tile = takeTile(assigned.isEmpty());
+                    if (tile < 0) {
+                        break;
+                    }
+                    assigned.add(tile);
+                    int x1 = tile % tilesX * TILE_SIZE;
+                    int y1 = tile / tilesX * TILE_SIZE;
+                    out.writeInt(TILE);
+                    out.writeInt(tile);
+                    out.writeInt(x1);
+                    out.writeInt(y1);
+                    out.writeInt(Math.min(x1 + TILE_SIZE, width));
+                    out.writeInt(Math.min(y1 + TILE_SIZE, height));
+                }
+                if (assigned.isEmpty()) {
+                    out.writeInt(DONE);
+                    out.flush();
+                    break;
+                }
+                out.flush();
+                int type = in.readInt();
+                while (type == HEARTBEAT) {
+                    type = in.readInt();
+                }
+                if (type != PIXELS) {
+                    throw new IOException("unexpected message");
+                }
+                int tile = in.readInt();
+                if (!assigned.remove(Integer.valueOf(tile))) {
+                    throw new IOException("pixels for tile " + tile + " which it wasn't given");
+                }
+                int x1 = tile % tilesX * TILE_SIZE;
+                int y1 = tile / tilesX * TILE_SIZE;
+                int x2 = Math.min(x1 + TILE_SIZE, width);
+                int y2 = Math.min(y1 + TILE_SIZE, height);
+                byte[] data = new byte[(x2 - x1) * (y2 - y1) * 4];
+                in.readFully(data);
+                finishTile(tile, x1, y1, x2, y2, ByteBuffer.wrap(data));
+            }
+        } catch (IOException e) {
+            System.out.printf("Lost worker %s: %s%n", name, e.toString());
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+            synchronized (this) {
+                workers--;
+                if (!assigned.isEmpty()) {
+                    System.out.printf("Reassigning %d tiles of %s%n", assigned.size(), name);
+                    pending.addAll(assigned);
+                    notifyAll();
+                }
+                if (workers == 0 && tilesLeft > 0) {
+                    failed = true;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    // Returns the next tile to render, or -1 if there is none right now. A worker with no
+    // tiles waits for one to be freed up by a lost worker, unless the render is finished.
+    private synchronized int takeTile(boolean wait) {
+        while (wait && pending.isEmpty() && tilesLeft > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                return -1;
+            }
+        }
+        Integer tile = pending.poll();
+        return tile == null ? -1 : tile;
+    }
+
+    private void finishTile(int tile, int x1, int y1, int x2, int y2, ByteBuffer data) {
+        IntBuffer rows = data.asIntBuffer();
+        synchronized (this) {
+            if (done[tile]) {
+                return;
+            }
+            for (int y = y1; y < y2; y++) {
+                rows.get(pixels, y * width + x1, x2 - x1);
+            }
+            done[tile] = true;
+            tilesLeft--;
+            if (tilesLeft % 100 == 0 && tilesLeft > 0) {
+                System.out.printf("%d of %d tiles left%n", tilesLeft, done.length);
+            }
+            notifyAll();
+        }
+    }
+
+    // Entry point for the --coordinate mode. Accepts a scene file along with
+    // "--port PORT", "--size WIDTHxHEIGHT" and "--output FILE" options.
+    public static void main(String[] args) {
+        String sceneFile = "default_scene.txt";
+        String output = "render.png";
+        int port = 7878;
+        int width = Main.width;
+        int height = Main.height;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+            case "--coordinate":
+                break;
+            case "--port":
+                try {
+                    port = Integer.parseInt(args[++i]);
+                } catch (Exception e) {
+                    System.out.println("Port must be a number!");
+                    System.exit(1);
+                }
+                break;
+            case "--size": {
+                String[] split = i + 1 < args.length ? args[++i].split("x") : new String[0];
+                try {
+                    width = Integer.parseInt(split[0]);
+                    height = Integer.parseInt(split[1]);
+                } catch (Exception e) {
+                    System.out.println("Size must be given as WIDTHxHEIGHT!");
+                    System.exit(1);
+                }
+                break;
+            }
+            case "--output":
+                if (i + 1 < args.length) {
+                    output = args[++i];
+                }
+                break;
+            default:
+                sceneFile = args[i];
+            }
+        }
+
+        Scene scene = null;
+        try {
+            scene = new Scene(sceneFile);
+        } catch (ParsingException e) {
+            System.out.println(e.toString());
+            System.exit(1);
+        }
+        try {
+            RenderCoordinator coordinator = new RenderCoordinator(scene, width, height);
+            System.out.printf("Waiting for workers on port %d to render %s at %dx%d%n", port, sceneFile, width, height);
+            long start = System.nanoTime();
+            int[] pixels = coordinator.render(port);
+            System.out.printf("Rendered in %.3f s%n", (System.nanoTime() - start) / 1.0e9);
+            ImageWriter.write(output, pixels, width, height);
+        } catch (IOException e) {
+            System.out.println(e.toString());
+            System.exit(1);
+        }
+    }
+}
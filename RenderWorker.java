@@ -0,0 +1,210 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Worker side of distributed rendering, run with "java Main --worker HOST:PORT". Connects
+// to a RenderCoordinator, renders the tiles it is given on every core and sends back their
+// pixels until the coordinator says the render is done. See RenderCoordinator for the
+// protocol. Textures are loaded by file name, so they must be found at the same paths on
+// the worker as on the coordinator.
+public final class RenderWorker {
+    // Rows of a tile rendered by one task.
+    private static final int ROWS_PER_TASK = 8;
+    // How long to keep trying to reach a coordinator that isn't listening yet.
+    private static final int CONNECT_ATTEMPTS = 30;
+
+    private Scene scene;
+    private int width;
+    private int height;
+    private ForkJoinPool pool;
+
+    public RenderWorker(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    // Renders tiles for the coordinator until it is done with this worker.
+    public void run(String host, int port) throws IOException, ParsingException {
+        try (Socket socket = connect(host, port)) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+            if (in.readInt() != RenderCoordinator.SCENE) {
+                throw new IOException("Expected the scene first!");
+            }
+            width = in.readInt();
+            height = in.readInt();
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            // Keep telling the coordinator this worker is alive, however long a tile takes.
+            final DataOutputStream heartbeatOut = out;
+            Timer heartbeat = new Timer("heartbeat", true);
+            heartbeat.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        synchronized (heartbeatOut) {
+                            heartbeatOut.writeInt(RenderCoordinator.HEARTBEAT);
+                            heartbeatOut.flush();
+                        }
+                    } catch (IOException e) {
+                        cancel();
+                    }
+                }
+            }, 0, RenderCoordinator.HEARTBEAT_MILLIS);
+            try {
+                render(bytes, in, out);
+            } finally {
+                heartbeat.cancel();
+            }
+        }
+    }
+
+    // Loads the scene, then renders the tiles the coordinator sends until it says it's done.
+    // The output stream is shared with the heartbeat, so writes lock it.
+    private void render(byte[] bytes, DataInputStream in, DataOutputStream out) throws IOException, ParsingException {
+        scene = new Scene((Camera)null);
+        BinaryScene.load(scene, ByteBuffer.wrap(bytes));
+        scene.build();
+        int tiles = 0;
+        while (true) {
+            int type = in.readInt();
+            if (type == RenderCoordinator.DONE) {
+                break;
+            }
+            if (type != RenderCoordinator.TILE) {
+                throw new IOException("Unexpected message " + type + "!");
+            }
+            int tile = in.readInt();
+            int x1 = in.readInt();
+            int y1 = in.readInt();
+            int x2 = in.readInt();
+            int y2 = in.readInt();
+            int[] pixels = new int[(x2 - x1) * (y2 - y1)];
+            pool.invoke(new RowTask(x1, x2, y1, y2, y1, pixels));
+            ByteBuffer data = ByteBuffer.allocate(pixels.length * 4);
+            data.asIntBuffer().put(pixels);
+            synchronized (out) {
+                out.writeInt(RenderCoordinator.PIXELS);
+                out.writeInt(tile);
+                out.write(data.array());
+                out.flush();
+            }
+            tiles++;
+        }
+        System.out.printf("Rendered %d tiles%n", tiles);
+    }
+
+    // Connects to the coordinator, retrying for a while so that workers can be started
+    // before it.
+    private static Socket connect(String host, int port) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return new Socket(host, port);
+            } catch (ConnectException e) {
+                if (attempt >= CONNECT_ATTEMPTS) {
+                    throw e;
+                }
+            }
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    // Renders rows y1 to y2 of a tile spanning x1 to x2 and starting at row top, splitting
+    // the rows between workers.
+    private final class RowTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int x1;
+        private final int x2;
+        private final int y1;
+        private final int y2;
+        private final int top;
+        private final int[] pixels;
+
+        RowTask(int x1, int x2, int y1, int y2, int top, int[] pixels) {
+            this.x1 = x1;
+            this.x2 = x2;
+            this.y1 = y1;
+            this.y2 = y2;
+            this.top = top;
+            this.pixels = pixels;
+        }
+
+        @Override
+        protected void compute() {
+            if (y2 - y1 > ROWS_PER_TASK) {
+                int mid = (y1 + y2) >>> 1;
+                invokeAll(new RowTask(x1, x2, y1, mid, top, pixels), new RowTask(x1, x2, mid, y2, top, pixels));
+                return;
+            }
+            TraceContext ctx = TraceContext.get();
+            double aspectRatio = (double)width / height;
+            ctx.spread = scene.camera.getSampleSpread(width);
+            int tileWidth = x2 - x1;
+            for (int y = y1; y < y2; y++) {
+                for (int x = x1; x < x2; x++) {
+                    scene.camera.getRay(
+                        ((double)x + 0.5) / width,
+                        1 - ((double)y + 0.5) / height,
+                        aspectRatio,
+                        ctx
+                    );
+                    pixels[(y - top) * tileWidth + x - x1] = scene.getRayColor(ctx);
+                }
+            }
+            ctx.samples += tileWidth * (y2 - y1);
+        }
+    }
+
+    // Entry point for the --worker mode. Takes the coordinator's "HOST:PORT" and an
+    // optional "--threads N", which defaults to every core.
+    public static void main(String[] args) {
+        String address = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+            case "--worker":
+                if (i + 1 < args.length) {
+                    address = args[++i];
+                }
+                break;
+            case "--threads":
+                try {
+                    threads = Integer.parseInt(args[++i]);
+                } catch (Exception e) {
+                    System.out.println("Threads must be a number!");
+                    System.exit(1);
+                }
+                break;
+            default:
+                System.out.println("Unknown option " + args[i]);
+                System.exit(1);
+            }
+        }
+        int colon = address == null ? -1 : address.lastIndexOf(':');
+        if (colon < 0) {
+            System.out.println("Usage: --worker <host>:<port> [--threads N]");
+            System.exit(1);
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            new RenderWorker(pool).run(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+        } catch (IOException | ParsingException | NumberFormatException e) {
+            System.out.println(e.toString());
+            System.exit(1);
+        }
+        pool.shutdown();
+    }
+}
@@ -1,263 +1,511 @@
 import java.util.List;
 import java.util.ArrayList;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.util.Scanner;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public final class Scene {
     public static final int MAX_REFLECTIONS = 20;
+    // A path that makes up less than this fraction of a pixel is not followed, since it
+    // could change the pixel by less than one step of an 8-bit channel.
+    private static final double MIN_CONTRIBUTION = 1.0 / 256;
+
+    // Intensity multiplier chosen to make the brightness level of the scene found in world.txt look good.
+    private static final double LIGHT_INTENSITY = 10;
 
     public Camera camera;
     public List<Light> lights = new ArrayList<Light>();
     public List<Entity> entities = new ArrayList<Entity>();
 
+    // Faint lights, or groups of nearby lights, are skipped when shading a point as long as
+    // everything skipped can't add up to more than this much brightness. Brightness runs
+    // from 0 to 1 per color channel, so 0.004 is one step of an 8-bit channel. Zero shades
+    // with every light.
+    public double lightTolerance = 0;
+    public TextureFilter textureFilter = TextureFilter.Mipmap;
+    public Acceleration acceleration = Acceleration.Auto;
+    // Most bounces a path makes off mirrors and transparent entities before its last hit is
+    // shaded as it is.
+    public int maxBounces = MAX_REFLECTIONS;
+    // A path that goes back and forth between the same two mirrors this many times in a row
+    // is stopped there, since it is most likely trapped between them. Zero follows such paths
+    // up to maxBounces like any other.
+    public int maxAlternations = 0;
+
+    private Accelerator accelerator;
+    private LightTree lightTree;
+    private SceneChanges changes = new SceneChanges();
+    // Edits posted from other threads that haven't been made yet.
+    private final ConcurrentLinkedQueue<Runnable> posted = new ConcurrentLinkedQueue<Runnable>();
+    // Run whenever an edit is posted, so that a renderer waiting for input can wake up and
+    // show it.
+    public volatile Runnable onPost;
+    // Entities moved since the accelerator was built, counting an entity again each time it
+    // moves.
+    private int movedSinceBuild;
+    private static final double MAX_REFIT_FRACTION = 0.25;
+
+    // Loads a scene definition file, either in the text format or the binary format written
+    // by BinaryScene.
     public Scene(String file) throws ParsingException {
-        Scanner scanner;
-        try {
-            scanner = new Scanner(new File(file));
-        } catch (Exception e) {
-            throw new ParsingException(file + " does not exist!");
+        if (BinaryScene.isBinary(file)) {
+            BinaryScene.load(this, file);
+        } else {
+            SceneParser.parse(this, file);
         }
-        String line = Utils.nextLineOrEmpty(scanner);
-        while (line != "") {
-            switch (line) {
-            case "camera:": {
-                Vector3 position = new Vector3(0, 0, 0);
-                Vector3 direction = new Vector3(1, 0, 0);
-                double fov = 90;
-                double size = 0;
-                while (Utils.isIndented(line = Utils.nextLineOrEmpty(scanner))) {
-                    Scanner s = new Scanner(line);
-                    switch (s.next()) {
-                    case "position:":
-                        position = Utils.readVector3(s);
-                        break;
-                    case "direction:":
-                        direction = Utils.readVector3(s);
-                        break;
-                    case "fov:":
-                        fov = s.nextDouble();
-                        break;
-                    case "size:":
-                        size = s.nextDouble();
-                        break;
-                    }
-                }
-                camera = new Camera(position, direction, fov, size);
-            }
-            case "cube:": {
-                Vector3 position = new Vector3(0, 0, 0);
-                double sideLength = 1;
-                Surface surface = null;
-                String texture = "";
-                while (Utils.isIndented(line = Utils.nextLineOrEmpty(scanner))) {
-                    Scanner s = new Scanner(line);
-                    switch (s.next()) {
-                    case "position:":
-                        position = Utils.readVector3(s);
-                        break;
-                    case "sideLength:":
-                        sideLength = s.nextDouble();
-                        break;
-                    case "surface:":
-                        surface = Utils.readSurface(s);
-                        break;
-                    case "texture:":
-                        texture = s.next();
-                        break;
-                    }
-                }
-                entities.add(new Cube(position, sideLength, surface, texture));
-                break;
-            }
-            case "sphere:": {
-                Vector3 position = new Vector3(0, 0, 0);
-                double radius = 1;
-                Surface surface = null;
-                String texture = "";
-                while (Utils.isIndented(line = Utils.nextLineOrEmpty(scanner))) {
-                    Scanner s = new Scanner(line);
-                    switch (s.next()) {
-                    case "position:":
-                        position = Utils.readVector3(s);
-                        break;
-                    case "radius:":
-                        radius = s.nextDouble();
-                        break;
-                    case "surface:":
-                        surface = Utils.readSurface(s);
-                        break;
-                    case "texture:":
-                        texture = s.next();
-                        break;
-                    }
-                }
-                entities.add(new Sphere(position, radius, surface, texture));
-                break;
-            }
-            case "light:": {
-                Vector3 position = new Vector3(0, 0, 0);
-                int color = 0xffffff;
-                while (Utils.isIndented(line = Utils.nextLineOrEmpty(scanner))) {
-                    Scanner s = new Scanner(line);
-                    switch (s.next()) {
-                    case "position:":
-                        position = Utils.readVector3(s);
-                        if (position == null) {
-                            return;
-                        }
-                        break;
-                    case "color:":
-                        color = s.nextInt(16);
-                        break;
-                    }
-                }
-                lights.add(new Light(position, color));
-                break;
-            }
-            }
+        build();
+    }
+
+    // Creates an empty scene to be filled in from code. build() must be called once all the
+    // entities have been added and before any rays are cast.
+    public Scene(Camera camera) {
+        this.camera = camera;
+    }
+
+    // Builds the acceleration structures over the current entities and lights.
+    public void build() {
+        buildAccelerator();
+        lightTree = new LightTree(lights);
+    }
+
+    private void buildAccelerator() {
+        movedSinceBuild = 0;
+        if (acceleration == Acceleration.Grid ||
+                (acceleration == Acceleration.Auto && UniformGrid.suitsScene(entities))) {
+            accelerator = new UniformGrid(entities);
+        } else {
+            accelerator = new BVH(entities);
         }
     }
 
-    // Check a ray against all the entities in the world and return the closest collision.
+    // Returns the kind of structure rays are traced through, which tells what Auto chose.
+    public String getAcceleratorName() {
+        return accelerator instanceof UniformGrid ? "uniform grid" : "BVH";
+    }
+
+    // Edits that keep the acceleration structures up to date and record what changed, so a
+    // RayTracer can re-render just the pixels the edit could affect. They must not be made
+    // while a frame is being rendered.
+
+    public void addEntity(Entity entity) {
+        entities.add(entity);
+        changes.addEntity(entity);
+        buildAccelerator();
+    }
+
+    public void removeEntity(int index) {
+        changes.addEntity(entities.remove(index));
+        buildAccelerator();
+    }
+
+    public void moveEntity(int index, Vector3 position) {
+        Entity entity = entities.get(index);
+        changes.addEntity(entity);
+        entity.position = position;
+        changes.addEntity(entity);
+        entitiesMoved(new int[]{index});
+    }
+
+    public void setLight(int index, Vector3 position, int color) {
+        Light light = lights.get(index);
+        light.position = position;
+        light.color = color;
+        changes.lights = true;
+        lightTree = new LightTree(lights);
+    }
+
+    // Queues an edit, made of calls to the edit methods above, for the renderer to make
+    // before its next frame. Unlike the edit methods, this can be called from any thread at
+    // any time.
+    public void post(Runnable edit) {
+        posted.add(edit);
+        Runnable listener = onPost;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    // Makes the edits posted so far, in the order they were posted. Called by RayTracer
+    // between frames.
+    public void makePostedEdits() {
+        Runnable edit;
+        while ((edit = posted.poll()) != null) {
+            edit.run();
+        }
+    }
+
+    // Returns the changes made with the edit methods since the last call.
+    public SceneChanges takeChanges() {
+        SceneChanges taken = changes;
+        changes = new SceneChanges();
+        return taken;
+    }
+
+    // Updates the acceleration structures after the entities at the given indices have moved
+    // or changed size. The accelerator is refitted around them while few entities have moved
+    // since it was built, and rebuilt once enough have that a refitted tree would be slow.
+    // Rebuilding also lets Auto choose again for the new layout.
+    public void entitiesMoved(int[] indices) {
+        movedSinceBuild += indices.length;
+        if (movedSinceBuild > entities.size() * MAX_REFIT_FRACTION) {
+            buildAccelerator();
+        } else {
+            accelerator.refit(indices);
+        }
+    }
+
+    // Check a ray against the entities in the world and return the closest collision.
     // Returns null if the ray collides with nothing.
     public Collision castRay(Ray3 ray) {
-        Collision closestCollision = null;
-        double closestCollisionDistanceSquared = Double.MAX_VALUE;
-        for (Entity entity : entities) {
-            Ray3 normal = entity.collide(ray);
-            if (normal == null) {
-                continue;
-            }
-            double distanceSquared = normal.position.minus(ray.position).lengthSquared();
-            if (distanceSquared < closestCollisionDistanceSquared) {
-                closestCollision = new Collision(entity, normal);
-                closestCollisionDistanceSquared = distanceSquared;
-            }
+        TraceContext ctx = TraceContext.get();
+        ctx.setRay(ray);
+        if (!castRay(ctx)) {
+            return null;
+        }
+        return new Collision(ctx.entity, new Ray3(
+            new Vector3(ctx.px, ctx.py, ctx.pz),
+            new Vector3(ctx.nx, ctx.ny, ctx.nz)
+        ));
+    }
+
+    // Allocation-free version of castRay. The closest collision of the context's ray is
+    // stored in the context. Returns false if the ray collides with nothing.
+    public boolean castRay(TraceContext ctx) {
+        ctx.rays++;
+        if (!accelerator.castRay(ctx)) {
+            return false;
         }
-        return closestCollision;
+        completeHit(ctx);
+        return true;
+    }
+
+    // Returns true if anything opaque lies along the context's ray within the given distance.
+    // Only the ray in the context is used; the hit stored there is left as it is.
+    public boolean occluded(TraceContext ctx, double maxDistance) {
+        ctx.rays++;
+        ctx.shadowRays++;
+        return accelerator.occluded(ctx, maxDistance);
+    }
+
+    // Fills in the hit point and normal for the entity and distance stored in the context.
+    private void completeHit(TraceContext ctx) {
+        ctx.px = ctx.ox + ctx.dx * ctx.distance;
+        ctx.py = ctx.oy + ctx.dy * ctx.distance;
+        ctx.pz = ctx.oz + ctx.dz * ctx.distance;
+        ctx.entity.setNormal(ctx);
     }
 
     public int getRayColor(Ray3 ray) {
-        Collision collision;
-        int reflections = 0;
-        do {
-            collision = castRay(ray);
-            if (collision == null) {
-                // If the ray didn't collide with anything, return black.
-                return 0x000000;
-            }
-            if (collision.entity.surface == Surface.Transparent) {
-                // Calculates deflection of a ray due to refraction if the entity is transparent.
-                // Currently the index of refraction is hard-coded at 1.5 (glass).
-                // The effect doesn't actually look that cool, probably it doesn't look much like
-                // glass since I still need to implement an added glassy reflection on the surface
-                // of transparent objects. Nevertheless, surfaces of entities in the world definition
-                // file can be specified to be "transparent".
-                Vector3 tangent = collision.normal.direction.cross(collision.normal.direction.cross(ray.direction)).normalize();
-                double nProj = -ray.direction.dot(collision.normal.direction);
-                ray.direction = ray.direction.scale(1 / nProj);
-                double tProj = ray.direction.dot(tangent);
-                double r = 1.5;
-                ray = new Ray3(
-                    collision.normal.position.minus(collision.normal.direction.scale(0.001)),
-                    collision.normal.direction.scale(-1).plus(tangent.scale(tProj / r)).normalize()
-                );
-                collision = castRay(ray);
-                tangent = collision.normal.direction.cross(collision.normal.direction.cross(ray.direction)).normalize();
-                nProj = -ray.direction.dot(collision.normal.direction);
-                ray.direction = ray.direction.scale(1 / nProj);
-                tProj = ray.direction.dot(tangent);
-                ray = new Ray3(
-                    collision.normal.position.minus(collision.normal.direction.scale(0.001)),
-                    collision.normal.direction.scale(-1).plus(tangent.scale(tProj * r)).normalize()
-                );
+        TraceContext ctx = TraceContext.get();
+        ctx.setRay(ray);
+        return getRayColor(ctx);
+    }
+
+    // Calculates the color seen along the context's ray. The context is used as scratch
+    // space, so its ray and hit are overwritten.
+    public int getRayColor(TraceContext ctx) {
+        ctx.pathLength = 0;
+        if (!castRay(ctx)) {
+            ctx.firstEntity = null;
+            // If the ray didn't collide with anything, return black.
+            return 0x000000;
+        }
+        ctx.firstEntity = ctx.entity;
+        return getHitColor(ctx);
+    }
+
+    // Same as getRayColor, for a context whose ray has already been cast with castRay and
+    // hit something.
+    public int getCastRayColor(TraceContext ctx) {
+        ctx.pathLength = 0;
+        ctx.firstEntity = ctx.entity;
+        return getHitColor(ctx);
+    }
+
+    // Finds the closest entity hit by every ray of a packet and stores them and their
+    // distances in the packet.
+    public void castPacket(RayPacket packet) {
+        TraceContext.get().rays += packet.count;
+        accelerator.castPacket(packet);
+    }
+
+    // Traces the rays of a packet together and stores their colors in the packet. Only the
+    // first hit of each ray is found as a packet; the rest of each path is traced alone.
+    public void getRayColors(RayPacket packet) {
+        TraceContext ctx = TraceContext.get();
+        castPacket(packet);
+        for (int i = 0; i < packet.count; i++) {
+            if (packet.entity[i] == null) {
+                packet.colors[i] = 0x000000;
                 continue;
             }
-            if (collision.entity.surface == Surface.Diffuse) {
+            ctx.setRay(packet.ox[i], packet.oy[i], packet.oz[i], packet.dx[i], packet.dy[i], packet.dz[i]);
+            ctx.entity = packet.entity[i];
+            ctx.distance = packet.distance[i];
+            ctx.pathLength = 0;
+            completeHit(ctx);
+            packet.colors[i] = getHitColor(ctx);
+        }
+    }
+
+    // Calculates the color seen at the hit stored in the context, following reflections and
+    // refractions from there.
+    private int getHitColor(TraceContext ctx) {
+        ctx.paths++;
+        return traceHit(ctx, 0, 1, false);
+    }
+
+    // Follows a path on from the hit stored in the context, which it reached after the given
+    // number of bounces. The weight is the fraction of the pixel's color the path contributes,
+    // and inside is set while the path is within a transparent entity.
+    private int traceHit(TraceContext ctx, int reflections, double weight, boolean inside) {
+        // Fraction of the light that the mirrors hit so far let through.
+        double attenuation = 1;
+        // The mirrors hit last and before that, and how many mirror hits in a row have gone
+        // back to the one before last.
+        Entity last = null;
+        Entity beforeLast = null;
+        int alternations = 0;
+        while (true) {
+            if (ctx.entity.surface == Surface.Transparent) {
+                if (reflections + 1 >= maxBounces || reflections + 1 >= ctx.quality.maxBounces) {
+                    ctx.bounces++;
+                    break;
+                }
+                return attenuate(getDielectricColor(ctx, reflections, weight, inside), attenuation);
+            } else if (ctx.entity.surface == Surface.Diffuse) {
                 // If the collision is a diffuse surface, then there are no further reflections, and the
                 // final color can be calculated from the point on the surface of the diffuse entity
                 // where the collision took place, and the locations of the lights in the scene.
                 break;
-            }
-            if (collision.entity.surface == Surface.Specular) {
+            } else if (ctx.entity.surface == Surface.Specular) {
+                Entity entity = ctx.entity;
+                alternations = entity == beforeLast && entity != last ? alternations + 1 : 0;
+                beforeLast = last;
+                last = entity;
+                if (maxAlternations > 0 && alternations >= maxAlternations) {
+                    break;
+                }
                 // If the collision is a specular surface, calculate the new ray to be from
                 // the point of collision and with a direction that is a bounce off the surface.
-                ray = new Ray3(
-                    collision.normal.position,
-                    ray.direction.minus(collision.normal.direction.scale(2 * ray.direction.dot(collision.normal.direction)))
+                double dn = 2 * (ctx.dx*ctx.nx + ctx.dy*ctx.ny + ctx.dz*ctx.nz);
+                ctx.pathLength += ctx.distance;
+                ctx.setRay(
+                    ctx.px, ctx.py, ctx.pz,
+                    ctx.dx - ctx.nx*dn, ctx.dy - ctx.ny*dn, ctx.dz - ctx.nz*dn
                 );
             } else {
                 // Surface type isn't accounted for. Just return black.
                 return 0x000000;
             }
-            // Loop while total reflections is less than maximum reflections.
-        } while (++reflections < MAX_REFLECTIONS);
-        return getDiffuseColor(collision);
+            ctx.bounces++;
+            // Stop once the maximum number of reflections is reached, and shade the last hit.
+            if (++reflections >= maxBounces || reflections >= ctx.quality.maxBounces) {
+                break;
+            }
+            double reflectivity = ctx.entity.reflectivity;
+            if (reflectivity < 1) {
+                attenuation *= reflectivity;
+                weight *= reflectivity;
+                // Stop once the rest of the path is too faint to show.
+                if (weight < MIN_CONTRIBUTION) {
+                    return 0x000000;
+                }
+            }
+            ctx.reflectionRays++;
+            if (!castRay(ctx)) {
+                return 0x000000;
+            }
+        }
+        return attenuate(getDiffuseColor(ctx), attenuation);
+    }
+
+    private static int attenuate(int color, double attenuation) {
+        return attenuation == 1 ? color : blend(color, attenuation, 0x000000, 0);
+    }
+
+    // Splits a path at the surface of a transparent entity into a reflected and a refracted
+    // path, and blends their colors by the surface's reflectance from Schlick's approximation
+    // of the Fresnel equations. Past the critical angle all of the light is reflected.
+    // Either path is left out, as black, if its share of the pixel is too small to show.
+    private int getDielectricColor(TraceContext ctx, int reflections, double weight, boolean inside) {
+        ctx.bounces++;
+        reflections++;
+        // The normal faces the side the ray came from.
+        double nx = ctx.nx;
+        double ny = ctx.ny;
+        double nz = ctx.nz;
+        double dx = ctx.dx;
+        double dy = ctx.dy;
+        double dz = ctx.dz;
+        double px = ctx.px;
+        double py = ctx.py;
+        double pz = ctx.pz;
+        double index = ctx.entity.refractiveIndex;
+        double eta = inside ? index : 1 / index;
+        double cosI = Math.min(-(dx*nx + dy*ny + dz*nz), 1);
+        double sinT2 = eta * eta * (1 - cosI * cosI);
+        double cosT = 0;
+        double reflectance = 1;
+        if (sinT2 < 1) {
+            cosT = Math.sqrt(1 - sinT2);
+            double r0 = (index - 1) / (index + 1);
+            r0 *= r0;
+            // The angle on the outside of the surface, where the light travels faster.
+            double c = 1 - (inside ? cosT : cosI);
+            reflectance = r0 + (1 - r0) * c*c*c*c*c;
+        }
+        double pathLength = ctx.pathLength + ctx.distance;
+
+        int reflected = 0x000000;
+        if (weight * reflectance >= MIN_CONTRIBUTION) {
+            double dn = 2 * cosI;
+            ctx.pathLength = pathLength;
+            ctx.setRay(
+                px + nx*0.001, py + ny*0.001, pz + nz*0.001,
+                dx + nx*dn, dy + ny*dn, dz + nz*dn
+            );
+            ctx.reflectionRays++;
+            if (castRay(ctx)) {
+                reflected = traceHit(ctx, reflections, weight * reflectance, inside);
+            }
+        }
+        int refracted = 0x000000;
+        if (weight * (1 - reflectance) >= MIN_CONTRIBUTION) {
+            // Bend the ray by Snell's law and start it just beyond the surface.
+            double k = eta * cosI - cosT;
+            double rx = eta*dx + k*nx;
+            double ry = eta*dy + k*ny;
+            double rz = eta*dz + k*nz;
+            double rl = Math.sqrt(rx*rx + ry*ry + rz*rz);
+            ctx.pathLength = pathLength;
+            ctx.setRay(
+                px - nx*0.001, py - ny*0.001, pz - nz*0.001,
+                rx / rl, ry / rl, rz / rl
+            );
+            ctx.refractionRays++;
+            if (castRay(ctx)) {
+                refracted = traceHit(ctx, reflections, weight * (1 - reflectance), !inside);
+            }
+        }
+        return blend(reflected, reflectance, refracted, 1 - reflectance);
+    }
+
+    // Returns the sum of two colors scaled by the given weights.
+    private static int blend(int a, double wa, int b, double wb) {
+        int r = (int)(((a >> 16) & 0xff) * wa + ((b >> 16) & 0xff) * wb + 0.5);
+        int g = (int)(((a >> 8) & 0xff) * wa + ((b >> 8) & 0xff) * wb + 0.5);
+        int bl = (int)((a & 0xff) * wa + (b & 0xff) * wb + 0.5);
+        return Math.min(r, 255) << 16 | Math.min(g, 255) << 8 | Math.min(bl, 255);
     }
 
     // Calculates the color of a collision point on a diffuse surface based on the distances and
     // locations of lights in the scene. A light is not added to the color if it is obstructed by an entity
-    // which thereby implements shadows.
-    private int getDiffuseColor(Collision collision) {
+    // which thereby implements shadows. The collision is the hit stored in the context, and the
+    // context's ray is overwritten by the shadow rays.
+    private int getDiffuseColor(TraceContext ctx) {
+        Entity entity = ctx.entity;
+        double distance = ctx.distance;
+        double dx = ctx.dx;
+        double dy = ctx.dy;
+        double dz = ctx.dz;
+        double px = ctx.px;
+        double py = ctx.py;
+        double pz = ctx.pz;
+        double nx = ctx.nx;
+        double ny = ctx.ny;
+        double nz = ctx.nz;
         double intensityR = 0;
         double intensityG = 0;
         double intensityB = 0;
-        for (Light light : lights) {
-            Vector3 lightVector = light.position.minus(collision.normal.position);
-            Vector3 lightDirection = lightVector.normalize();
-            Collision c = castRay(new Ray3(collision.normal.position, lightDirection));
-            if (c == null || c.normal.position.minus(collision.normal.position).lengthSquared() > lightVector.lengthSquared() || c.entity.surface == Surface.Transparent) {
-                double intensity = Math.abs(collision.normal.direction.dot(lightDirection)) / lightVector.lengthSquared();
+        // With a tolerance, only the lights that can make a visible difference here are used.
+        int lightCount = lights.size();
+        boolean culling = lightTolerance > 0;
+        if (culling) {
+            if (ctx.lights.length < lightTree.size()) {
+                ctx.lights = new int[lightTree.size()];
+                ctx.lightStack = new int[lightTree.stackSize()];
+            }
+            lightCount = lightTree.select(px, py, pz, LIGHT_INTENSITY, lightTolerance, ctx.lights, ctx.lightStack);
+        }
+        // Lights past the quality's limit are counted as unblocked rather than dropped, so a
+        // preview doesn't get darker with more lights.
+        int maxShadowRays = ctx.quality.maxShadowRays;
+        for (int i = 0; i < lightCount; i++) {
+            Light light = culling ? lightTree.get(ctx.lights[i]) : lights.get(i);
+            double lx = light.position.x() - px;
+            double ly = light.position.y() - py;
+            double lz = light.position.z() - pz;
+            double lightDistanceSquared = lx*lx + ly*ly + lz*lz;
+            double lightDistance = Math.sqrt(lightDistanceSquared);
+            if (lightDistance != 0) {
+                lx /= lightDistance;
+                ly /= lightDistance;
+                lz /= lightDistance;
+            }
+            ctx.setRay(px, py, pz, lx, ly, lz);
+            if (i >= maxShadowRays || !occluded(ctx, lightDistance)) {
+                double intensity = Math.abs(nx*lx + ny*ly + nz*lz) / lightDistanceSquared;
                 intensityR += (double)(light.color >> 16) / 255 * intensity;
                 intensityG += (double)((light.color >> 8) & 0xff) / 255 * intensity;
                 intensityB += (double)(light.color & 0xff) / 255 * intensity;
             }
         }
-        // Intensity multiplier chosen to make the brightness level of the scene found in world.txt look good.
-        double m = 10;
-        intensityR *= m;
-        intensityG *= m;
-        intensityB *= m;
+        intensityR *= LIGHT_INTENSITY;
+        intensityG *= LIGHT_INTENSITY;
+        intensityB *= LIGHT_INTENSITY;
         // Add an ambient light factor.
         intensityR += 0.05;
         intensityG += 0.05;
         intensityB += 0.05;
-        if (collision.entity.texture != null && collision.entity.surface == Surface.Diffuse) {
+        if (entity.texture != null && entity.surface == Surface.Diffuse) {
             // If the entity has a texture and is diffuse, calculate the texture color at the point
             // of collision and incorporate it into the light intensities.
             int textureColor = -1;
-            if (collision.entity instanceof Cube) {
-                Cube cube = (Cube)collision.entity;
-                Vector3 fp = collision.normal.position.minus(cube.position);
-                Vector3 afp = new Vector3(Math.abs(fp.x()), Math.abs(fp.y()), Math.abs(fp.z()));
-                Vector3 axis1 = null;
-                Vector3 axis2 = null;
-                if (afp.x() < afp.z() && afp.y() < afp.z()) {
-                    axis1 = new Vector3(1, 0, 0);
-                    axis2 = new Vector3(0, 1, 0);
-                } else if (afp.x() < afp.y() && afp.z() < afp.y()) {
-                    axis1 = new Vector3(1, 0, 0);
-                    axis2 = new Vector3(0, 0, 1);
-                } else if (afp.y() < afp.x() && afp.z() < afp.x()) {
-                    axis1 = new Vector3(0, 1, 0);
-                    axis2 = new Vector3(0, 0, 1);
+            // Size of the sample on the surface, which grows with the distance travelled and
+            // stretches as the surface turns away from the ray.
+            double cos = Math.max(Math.abs(dx*nx + dy*ny + dz*nz), 0.1);
+            double footprint = ctx.spread * (ctx.pathLength + distance) / cos;
+            if (!ctx.quality.textures) {
+                // Previews shade the entity flat in its texture's average color.
+                textureColor = entity.texture.getAverageColor();
+            } else if (entity instanceof Cube) {
+                Cube cube = (Cube)entity;
+                double fx = px - cube.position.x();
+                double fy = py - cube.position.y();
+                double fz = pz - cube.position.z();
+                double ax = Math.abs(fx);
+                double ay = Math.abs(fy);
+                double az = Math.abs(fz);
+                // Texture coordinates come from the two axes the face lies along.
+                double u;
+                double v;
+                if (ax < az && ay < az) {
+                    u = fx;
+                    v = fy;
+                } else if (ax < ay && az < ay) {
+                    u = fx;
+                    v = fz;
+                } else {
+                    u = fy;
+                    v = fz;
                 }
-                double x = 5 * (fp.dot(axis1)/cube.sideLength + 0.5) % 1;
-                double y = 5 * (fp.dot(axis2)/cube.sideLength + 0.5) % 1;
-                textureColor = cube.texture.getRGB(
-                    (int)(x * cube.texture.getWidth()),
-                    (int)(y * cube.texture.getHeight())
-                );
-            } else if (collision.entity instanceof Sphere) {
-                Sphere sphere = (Sphere)collision.entity;
-                Vector3 rp = collision.normal.position.minus(sphere.position);
-                double x = Math.atan2(rp.y(), rp.x()) / (2 * Math.PI) + 0.5;
-                double y = Math.asin(rp.z() / rp.length()) / Math.PI + 0.5;
-                textureColor = sphere.texture.getRGB(
-                    (int)(x * sphere.texture.getWidth()),
-                    (int)((1 - y) * sphere.texture.getHeight())
+                double x = 5 * (u/cube.sideLength + 0.5) % 1;
+                double y = 5 * (v/cube.sideLength + 0.5) % 1;
+                // The texture repeats 5 times across each face.
+                double texelsPerUnit = 5 * Math.max(cube.texture.getWidth(), cube.texture.getHeight()) / cube.sideLength;
+                textureColor = cube.texture.sample(x, y, footprint * texelsPerUnit, textureFilter);
+            } else if (entity instanceof Sphere) {
+                Sphere sphere = (Sphere)entity;
+                double rx = px - sphere.position.x();
+                double ry = py - sphere.position.y();
+                double rz = pz - sphere.position.z();
+                double x = Math.atan2(ry, rx) / (2 * Math.PI) + 0.5;
+                double y = Math.asin(rz / Math.sqrt(rx*rx + ry*ry + rz*rz)) / Math.PI + 0.5;
+                // The texture wraps once around the equator and once from pole to pole.
+                double texelsPerUnit = Math.max(
+                    sphere.texture.getWidth() / (2 * Math.PI * sphere.radius),
+                    sphere.texture.getHeight() / (Math.PI * sphere.radius)
                 );
+                textureColor = sphere.texture.sample(x, 1 - y, footprint * texelsPerUnit, textureFilter);
             }
             if (textureColor != -1) {
                 intensityR *= (double)((textureColor >> 16) & 0xff) / 255;
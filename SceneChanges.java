@@ -0,0 +1,71 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+// What has changed in a scene since a renderer last looked, recorded by Scene's edit
+// methods. Entity edits are kept as the world-space boxes that something appeared in or
+// disappeared from, so a renderer can tell which of its cached pixels might look different
+// now: those whose camera ray or shadow rays pass through one of the boxes.
+public final class SceneChanges {
+    // Six doubles per box: min x, y, z followed by max x, y, z.
+    private final List<double[]> boxes = new ArrayList<double[]>();
+    // The entities that were added, removed or moved.
+    private final Set<Entity> entities = Collections.newSetFromMap(new IdentityHashMap<Entity, Boolean>());
+    // Set when a light changed, which can change the shading of every lit point.
+    public boolean lights;
+
+    public boolean isEmpty() {
+        return boxes.isEmpty() && !lights;
+    }
+
+    // Records the entity and the space it takes up where it is now.
+    void addEntity(Entity entity) {
+        entities.add(entity);
+        Vector3 min = entity.getBoundsMin();
+        Vector3 max = entity.getBoundsMax();
+        // Grown slightly, since rays that only graze the entity may still have hit it.
+        double e = 0.001;
+        boxes.add(new double[]{min.x() - e, min.y() - e, min.z() - e, max.x() + e, max.y() + e, max.z() + e});
+    }
+
+    // Returns true if the entity was added, removed or moved.
+    public boolean contains(Entity entity) {
+        return entities.contains(entity);
+    }
+
+    // Returns true if the segment from (ax, ay, az) to (bx, by, bz) passes through any of the
+    // changed boxes.
+    public boolean crosses(double ax, double ay, double az, double bx, double by, double bz) {
+        return crosses(ax, ay, az, bx - ax, by - ay, bz - az, 1);
+    }
+
+    // Returns true if the ray from (ox, oy, oz) along (dx, dy, dz) passes through any of the
+    // changed boxes before the given distance, measured in multiples of the direction.
+    public boolean crosses(double ox, double oy, double oz, double dx, double dy, double dz, double maxDistance) {
+        double ix = 1 / dx;
+        double iy = 1 / dy;
+        double iz = 1 / dz;
+        for (double[] box : boxes) {
+            double t1 = (box[0] - ox) * ix;
+            double t2 = (box[3] - ox) * ix;
+            double tmin = Math.min(t1, t2);
+            double tmax = Math.max(t1, t2);
+            t1 = (box[1] - oy) * iy;
+            t2 = (box[4] - oy) * iy;
+            tmin = Math.max(tmin, Math.min(t1, t2));
+            tmax = Math.min(tmax, Math.max(t1, t2));
+            t1 = (box[2] - oz) * iz;
+            t2 = (box[5] - oz) * iz;
+            tmin = Math.max(tmin, Math.min(t1, t2));
+            tmax = Math.min(tmax, Math.max(t1, t2));
+            // A zero direction component gives NaN for a ray starting on the slab, which
+            // counts as crossing.
+            if (!(tmax < 0 || tmin > tmax || tmin > maxDistance)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,559 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+// Reads scene definition files. The file is memory-mapped and walked with a hand-written
+// tokenizer, and each entity is added to the scene as soon as its section ends, so that
+// files with millions of entities load without building a Scanner or String for every line.
+//
+// The format is a list of unindented section names, each followed by indented
+// "key: value" lines:
+//
+//     sphere:
+//         position: (2, 0, 0)
+//         radius: 1
+//         surface: specular
+//
+// Unknown keys are ignored and blank lines are skipped.
+public final class SceneParser {
+    private static final double[] POWERS_OF_TEN = new double[]{
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final Scene scene;
+    private final ByteBuffer buffer;
+    private final int limit;
+    private int pos;
+    // Number of the line pos is on, counting from one, for error messages.
+    private int line = 1;
+
+    private SceneParser(Scene scene, ByteBuffer buffer) {
+        this.scene = scene;
+        this.buffer = buffer;
+        this.limit = buffer.limit();
+    }
+
+    // Reads a scene file and adds its camera, entities, lights and settings to the scene.
+    public static void parse(Scene scene, String file) throws ParsingException {
+        new SceneParser(scene, map(file)).parse();
+    }
+
+    // Reads an animation file's frame count and keyframes into the animation.
+    public static void parseAnimation(Animation animation, String file) throws ParsingException {
+        new SceneParser(null, map(file)).parseAnimation(animation);
+    }
+
+    private static ByteBuffer map(String file) throws ParsingException {
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new ParsingException(file + " is too large!");
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (IOException e) {
+            throw new ParsingException(file + " does not exist!");
+        }
+    }
+
+    private void parse() throws ParsingException {
+        while (nextLine()) {
+            if (indented()) {
+                throw error("Indented line outside of a section!");
+            }
+            if (word("camera:")) {
+                endLine();
+                parseCamera();
+            } else if (word("cube:")) {
+                endLine();
+                parseCube();
+            } else if (word("sphere:")) {
+                endLine();
+                parseSphere();
+            } else if (word("light:")) {
+                endLine();
+                parseLight();
+            } else if (word("settings:")) {
+                endLine();
+                parseSettings();
+            } else {
+                throw error("No such section exists: " + readWord());
+            }
+        }
+    }
+
+    private void parseAnimation(Animation animation) throws ParsingException {
+        while (nextLine()) {
+            if (indented()) {
+                throw error("Indented line outside of a section!");
+            }
+            if (word("animation:")) {
+                endLine();
+                while (nextIndentedLine()) {
+                    if (word("frames:")) {
+                        animation.frames = readInt();
+                    }
+                    endLine();
+                }
+            } else if (word("camera:")) {
+                endLine();
+                Animation.CameraKey key = new Animation.CameraKey();
+                while (nextIndentedLine()) {
+                    if (word("frame:")) {
+                        key.frame = readInt();
+                    } else if (word("position:")) {
+                        key.position = readVector3();
+                    } else if (word("direction:")) {
+                        key.direction = readVector3();
+                    } else if (word("fov:")) {
+                        key.fov = readDouble();
+                    } else if (word("size:")) {
+                        key.size = readDouble();
+                    }
+                    endLine();
+                }
+                animation.cameraKeys.add(key);
+            } else if (word("entity:")) {
+                int header = line;
+                endLine();
+                Animation.EntityKey key = new Animation.EntityKey();
+                int index = -1;
+                while (nextIndentedLine()) {
+                    if (word("index:")) {
+                        index = readInt();
+                    } else if (word("frame:")) {
+                        key.frame = readInt();
+                    } else if (word("position:")) {
+                        key.position = readVector3();
+                    }
+                    endLine();
+                }
+                if (index < 0 || key.position == null) {
+                    throw error(header, "Entity keyframes need an index and a position!");
+                }
+                List<Animation.EntityKey> keys = animation.entityKeys.get(index);
+                if (keys == null) {
+                    keys = new ArrayList<Animation.EntityKey>();
+                    animation.entityKeys.put(index, keys);
+                }
+                keys.add(key);
+            } else {
+                throw error("No such section exists: " + readWord());
+            }
+        }
+    }
+
+    private void parseCamera() throws ParsingException {
+        Vector3 position = new Vector3(0, 0, 0);
+        Vector3 direction = new Vector3(1, 0, 0);
+        double fov = 90;
+        double size = 0;
+        while (nextIndentedLine()) {
+            if (word("position:")) {
+                position = readVector3();
+            } else if (word("direction:")) {
+                direction = readVector3();
+            } else if (word("fov:")) {
+                fov = readDouble();
+            } else if (word("size:")) {
+                size = readDouble();
+            }
+            endLine();
+        }
+        scene.camera = new Camera(position, direction, fov, size);
+    }
+
+    private void parseCube() throws ParsingException {
+        Vector3 position = new Vector3(0, 0, 0);
+        double sideLength = 1;
+        Surface surface = null;
+        String texture = "";
+        double refractiveIndex = 1.5;
+        double reflectivity = 1;
+        while (nextIndentedLine()) {
+            if (word("position:")) {
+                position = readVector3();
+            } else if (word("sideLength:")) {
+                sideLength = readDouble();
+            } else if (word("surface:")) {
+                surface = Utils.parseSurface(readWord());
+            } else if (word("texture:")) {
+                texture = readWord();
+            } else if (word("refractiveIndex:")) {
+                refractiveIndex = readDouble();
+                if (!(refractiveIndex > 0)) {
+                    throw error("Refractive index must be positive!");
+                }
+            } else if (word("reflectivity:")) {
+                reflectivity = readDouble();
+                if (!(reflectivity >= 0 && reflectivity <= 1)) {
+                    throw error("Reflectivity must be between 0 and 1!");
+                }
+            }
+            endLine();
+        }
+        Cube cube = new Cube(position, sideLength, surface, texture);
+        cube.refractiveIndex = refractiveIndex;
+        cube.reflectivity = reflectivity;
+        scene.entities.add(cube);
+    }
+
+    private void parseSphere() throws ParsingException {
+        Vector3 position = new Vector3(0, 0, 0);
+        double radius = 1;
+        Surface surface = null;
+        String texture = "";
+        double refractiveIndex = 1.5;
+        double reflectivity = 1;
+        while (nextIndentedLine()) {
+            if (word("position:")) {
+                position = readVector3();
+            } else if (word("radius:")) {
+                radius = readDouble();
+            } else if (word("surface:")) {
+                surface = Utils.parseSurface(readWord());
+            } else if (word("texture:")) {
+                texture = readWord();
+            } else if (word("refractiveIndex:")) {
+                refractiveIndex = readDouble();
+                if (!(refractiveIndex > 0)) {
+                    throw error("Refractive index must be positive!");
+                }
+            } else if (word("reflectivity:")) {
+                reflectivity = readDouble();
+                if (!(reflectivity >= 0 && reflectivity <= 1)) {
+                    throw error("Reflectivity must be between 0 and 1!");
+                }
+            }
+            endLine();
+        }
+        Sphere sphere = new Sphere(position, radius, surface, texture);
+        sphere.refractiveIndex = refractiveIndex;
+        sphere.reflectivity = reflectivity;
+        scene.entities.add(sphere);
+    }
+
+    private void parseLight() throws ParsingException {
+        Vector3 position = new Vector3(0, 0, 0);
+        int color = 0xffffff;
+        while (nextIndentedLine()) {
+            if (word("position:")) {
+                position = readVector3();
+            } else if (word("color:")) {
+                color = readHex();
+            }
+            endLine();
+        }
+        scene.lights.add(new Light(position, color));
+    }
+
+    private void parseSettings() throws ParsingException {
+        while (nextIndentedLine()) {
+            if (word("lightTolerance:")) {
+                scene.lightTolerance = readDouble();
+            } else if (word("textureFilter:")) {
+                scene.textureFilter = Utils.parseTextureFilter(readWord());
+            } else if (word("acceleration:")) {
+                scene.acceleration = Utils.parseAcceleration(readWord());
+            } else if (word("maxBounces:")) {
+                scene.maxBounces = readInt();
+                if (scene.maxBounces < 0) {
+                    throw error("Max bounces can't be negative!");
+                }
+            } else if (word("maxAlternations:")) {
+                scene.maxAlternations = readInt();
+                if (scene.maxAlternations < 0) {
+                    throw error("Max alternations can't be negative!");
+                }
+            }
+            endLine();
+        }
+    }
+
+    // Moves to the start of the next line that isn't blank. Returns false at the end of the file.
+    private boolean nextLine() {
+        while (pos < limit) {
+            int start = pos;
+            skipSpaces();
+            if (pos < limit && !isNewline(buffer.get(pos))) {
+                pos = start;
+                return true;
+            }
+            skipNewline();
+        }
+        return false;
+    }
+
+    // Moves to the next line if it belongs to the current section, and to its first token.
+    // Otherwise stays at the start of the line and returns false.
+    private boolean nextIndentedLine() {
+        if (!nextLine() || !indented()) {
+            return false;
+        }
+        skipSpaces();
+        return true;
+    }
+
+    private boolean indented() {
+        byte b = buffer.get(pos);
+        return b == ' ' || b == '\t';
+    }
+
+    // Skips whatever is left of the current line, including the line break.
+    private void endLine() {
+        while (pos < limit && !isNewline(buffer.get(pos))) {
+            pos++;
+        }
+        skipNewline();
+    }
+
+    // Skips one line break, counting "\r\n" as a single one.
+    private void skipNewline() {
+        if (pos >= limit || !isNewline(buffer.get(pos))) {
+            return;
+        }
+        if (buffer.get(pos) == '\r') {
+            pos++;
+        }
+        if (pos < limit && buffer.get(pos) == '\n') {
+            pos++;
+        }
+        line++;
+    }
+
+    private void skipSpaces() {
+        while (pos < limit) {
+            byte b = buffer.get(pos);
+            if (b != ' ' && b != '\t') {
+                break;
+            }
+            pos++;
+        }
+    }
+
+    // Consumes the next token if it is exactly the given word.
+    private boolean word(String w) {
+        int n = w.length();
+        if (pos + n > limit) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            if (buffer.get(pos + i) != w.charAt(i)) {
+                return false;
+            }
+        }
+        if (pos + n < limit && !isSeparator(buffer.get(pos + n))) {
+            return false;
+        }
+        pos += n;
+        return true;
+    }
+
+    private String readWord() throws ParsingException {
+        skipSpaces();
+        int start = pos;
+        while (pos < limit && !isSeparator(buffer.get(pos))) {
+            pos++;
+        }
+        if (pos == start) {
+            throw error("Expected a value!");
+        }
+        return text(start, pos);
+    }
+
+    private Vector3 readVector3() throws ParsingException {
+        skipSpaces();
+        if (pos >= limit || buffer.get(pos) != '(') {
+            throw error("Coordinates must be parenthesized!");
+        }
+        pos++;
+        double x = readComponent();
+        expectComma();
+        double y = readComponent();
+        expectComma();
+        double z = readComponent();
+        skipSpaces();
+        if (pos >= limit || buffer.get(pos) != ')') {
+            if (pos < limit && buffer.get(pos) == ',') {
+                throw error("A coordinates must have exactly 3 components!");
+            }
+            throw error("Coordinates must be parenthesized!");
+        }
+        pos++;
+        return new Vector3(x, y, z);
+    }
+
+    private int readInt() throws ParsingException {
+        double value = readDouble();
+        if (value != (int)value) {
+            throw error("Expected a whole number!");
+        }
+        return (int)value;
+    }
+
+    private double readComponent() throws ParsingException {
+        try {
+            return readDouble();
+        } catch (ParsingException e) {
+            throw error("Components of coordinate must be numbers!");
+        }
+    }
+
+    private void expectComma() throws ParsingException {
+        skipSpaces();
+        if (pos >= limit || buffer.get(pos) != ',') {
+            throw error("A coordinates must have exactly 3 components!");
+        }
+        pos++;
+    }
+
+    // Parses a decimal number. Numbers with up to 15 significant digits and a small
+    // exponent are converted exactly with one multiplication or division by a power of ten;
+    // anything else falls back to Double.parseDouble.
+    private double readDouble() throws ParsingException {
+        skipSpaces();
+        int start = pos;
+        boolean negative = false;
+        if (pos < limit && (buffer.get(pos) == '-' || buffer.get(pos) == '+')) {
+            negative = buffer.get(pos) == '-';
+            pos++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean any = false;
+        while (pos < limit && isDigit(buffer.get(pos))) {
+            if (digits < 18) {
+                mantissa = mantissa * 10 + (buffer.get(pos) - '0');
+                if (mantissa != 0) {
+                    digits++;
+                }
+            } else {
+                scale++;
+                digits++;
+            }
+            any = true;
+            pos++;
+        }
+        if (pos < limit && buffer.get(pos) == '.') {
+            pos++;
+            while (pos < limit && isDigit(buffer.get(pos))) {
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (buffer.get(pos) - '0');
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                    scale--;
+                } else {
+                    digits++;
+                }
+                any = true;
+                pos++;
+            }
+        }
+        if (!any) {
+            return readSlowDouble(start);
+        }
+        if (pos < limit && (buffer.get(pos) == 'e' || buffer.get(pos) == 'E')) {
+            pos++;
+            boolean negativeExponent = false;
+            if (pos < limit && (buffer.get(pos) == '-' || buffer.get(pos) == '+')) {
+                negativeExponent = buffer.get(pos) == '-';
+                pos++;
+            }
+            int exponent = 0;
+            boolean anyExponent = false;
+            while (pos < limit && isDigit(buffer.get(pos))) {
+                exponent = Math.min(exponent * 10 + (buffer.get(pos) - '0'), 100000);
+                anyExponent = true;
+                pos++;
+            }
+            if (!anyExponent) {
+                throw error("Expected a number!");
+            }
+            scale += negativeExponent ? -exponent : exponent;
+        }
+        if (pos < limit && !isNumberEnd(buffer.get(pos))) {
+            return readSlowDouble(start);
+        }
+        if (digits <= 15 && scale >= -22 && scale <= 22) {
+            double value = scale < 0 ? mantissa / POWERS_OF_TEN[-scale] : mantissa * POWERS_OF_TEN[scale];
+            return negative ? -value : value;
+        }
+        return Double.parseDouble(text(start, pos));
+    }
+
+    // Parses the whole token at start with Double.parseDouble, for everything the fast path
+    // does not handle such as NaN, Infinity and hexadecimal or suffixed literals.
+    private double readSlowDouble(int start) throws ParsingException {
+        pos = start;
+        while (pos < limit && !isNumberEnd(buffer.get(pos))) {
+            pos++;
+        }
+        try {
+            return Double.parseDouble(text(start, pos));
+        } catch (NumberFormatException e) {
+            pos = start;
+            throw error("Expected a number!");
+        }
+    }
+
+    private int readHex() throws ParsingException {
+        skipSpaces();
+        int start = pos;
+        int value = 0;
+        while (pos < limit) {
+            int digit = Character.digit(buffer.get(pos), 16);
+            if (digit < 0) {
+                break;
+            }
+            value = value * 16 + digit;
+            pos++;
+        }
+        // Anything else in the token, such as the x of "0x", means it wasn't a hex number.
+        if (pos == start || pos < limit && !isSeparator(buffer.get(pos))) {
+            throw error("Expected a hex colour!");
+        }
+        if (pos - start > 8) {
+            throw error("Colors must be given as hexadecimal RRGGBB!");
+        }
+        return value;
+    }
+
+    private String text(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private ParsingException error(String message) {
+        return error(line, message);
+    }
+
+    private ParsingException error(int line, String message) {
+        return new ParsingException("Line " + line + ": " + message);
+    }
+
+    private static boolean isNewline(byte b) {
+        return b == '\n' || b == '\r';
+    }
+
+    private static boolean isSeparator(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    private static boolean isNumberEnd(byte b) {
+        return isSeparator(b) || b == ',' || b == ')';
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+}
@@ -0,0 +1,152 @@
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+// Renders every frame of an Animation to numbered image files, run with
+//     java Main --sequence scene.txt --animation path.txt --output frames/%04d.png
+// The scene, its textures and its acceleration structures are loaded once and kept for the
+// whole sequence; entities that move are refitted into the BVH rather than rebuilding it.
+// Each frame is written on a separate thread while the next one is traced.
+public final class SequenceRenderer {
+    private SequenceRenderer() {
+    }
+
+    // Renders the frames of an animation and writes them to files named by formatting the
+    // frame number with the output pattern.
+    public static void render(Scene scene, Animation animation, BatchRenderer renderer, String output)
+            throws IOException {
+        final int width = renderer.getWidth();
+        final int height = renderer.getHeight();
+        // Two framebuffers, so one can be written while the other is filled.
+        int[][] buffers = new int[][]{new int[width * height], new int[width * height]};
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        Future<?> writing = null;
+        try {
+            for (int frame = 0; frame < animation.frames; frame++) {
+                long start = System.nanoTime();
+                int[] moved = animation.apply(scene, frame);
+                if (moved.length > 0) {
+                    scene.entitiesMoved(moved);
+                }
+                int[] pixels = renderer.render();
+                long traced = System.nanoTime();
+                // The previous frame's write must be finished before its turn comes around
+                // again, and waiting here also keeps at most one frame queued.
+                finish(writing);
+                final int[] buffer = buffers[frame % 2];
+                System.arraycopy(pixels, 0, buffer, 0, pixels.length);
+                final String file = String.format(output, frame);
+                writing = writer.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        ImageWriter.write(file, buffer, width, height);
+                        return null;
+                    }
+                });
+                System.out.printf("Frame %d of %d: %d entities moved, traced in %.3f s%n",
+                    frame + 1, animation.frames, moved.length, (traced - start) / 1.0e9);
+            }
+            finish(writing);
+        } finally {
+            writer.shutdown();
+        }
+    }
+
+    private static void finish(Future<?> writing) throws IOException {
+        if (writing == null) {
+            return;
+        }
+        try {
+            writing.get();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException("Couldn't write a frame: " + e.getCause().toString());
+        }
+    }
+
+    // Entry point for the --sequence mode. Accepts a scene file along with
+    // "--animation FILE", "--size WIDTHxHEIGHT", "--output PATTERN", "--packets" and
+    // "--antialias" options. The pattern is a format string for the frame number, such as
+    // "frame%04d.png".
+    public static void main(String[] args) {
+        String sceneFile = "default_scene.txt";
+        String animationFile = null;
+        String output = "frame%04d.png";
+        int width = Main.width;
+        int height = Main.height;
+        boolean packets = false;
+        boolean antialias = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+            case "--sequence":
+                break;
+            case "--animation":
+                if (i + 1 < args.length) {
+                    animationFile = args[++i];
+                }
+                break;
+            case "--size": {
+                String[] split = i + 1 < args.length ? args[++i].split("x") : new String[0];
+                try {
+                    width = Integer.parseInt(split[0]);
+                    height = Integer.parseInt(split[1]);
+                } catch (Exception e) {
+                    System.out.println("Size must be given as WIDTHxHEIGHT!");
+                    System.exit(1);
+                }
+                break;
+            }
+            case "--packets":
+                packets = true;
+                break;
+            case "--antialias":
+                antialias = true;
+                break;
+            case "--output":
+                if (i + 1 < args.length) {
+                    output = args[++i];
+                }
+                break;
+            default:
+                sceneFile = args[i];
+            }
+        }
+        if (animationFile == null) {
+            System.out.println("Usage: --sequence <scene file> --animation <animation file> [options]");
+            System.exit(1);
+        }
+
+        long t1 = System.nanoTime();
+        Scene scene = null;
+        Animation animation = null;
+        try {
+            scene = new Scene(sceneFile);
+            animation = new Animation(scene, animationFile);
+        } catch (ParsingException e) {
+            System.out.println(e.toString());
+            System.exit(1);
+        }
+        long t2 = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        BatchRenderer renderer = new BatchRenderer(scene, width, height, pool);
+        renderer.packetTracing = packets;
+        renderer.antialiasing = antialias;
+        try {
+            render(scene, animation, renderer, output);
+        } catch (IOException e) {
+            System.out.println(e.toString());
+            System.exit(1);
+        }
+        long t3 = System.nanoTime();
+        pool.shutdown();
+        System.out.printf("Rendered %d frames of %s at %dx%d on %d threads%n",
+            animation.frames, sceneFile, width, height, pool.getParallelism());
+        System.out.printf("Load:   %.3f s%n", (t2 - t1) / 1.0e9);
+        System.out.printf("Render: %.3f s (%.3f s per frame)%n", (t3 - t2) / 1.0e9, (t3 - t2) / 1.0e9 / animation.frames);
+    }
+}
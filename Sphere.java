@@ -1,7 +1,3 @@
-import javax.imageio.ImageIO;
-import java.io.File;
-import java.io.IOException;
-
 public final class Sphere extends Entity {
     public double radius;
 
@@ -9,10 +5,17 @@ public final class Sphere extends Entity {
         this.position = position;
         this.radius = radius;
         this.surface = surface;
-        try {
-            this.texture = ImageIO.read(new File(texture));
-        } catch (IOException e) {
-        }
+        this.texture = Texture.load(texture);
+    }
+
+    @Override
+    public Vector3 getBoundsMin() {
+        return position.minus(new Vector3(radius, radius, radius));
+    }
+
+    @Override
+    public Vector3 getBoundsMax() {
+        return position.plus(new Vector3(radius, radius, radius));
     }
 
     @Override
@@ -52,4 +55,51 @@ public final class Sphere extends Entity {
         normal.direction = normal.direction.normalize();
         return normal;
     }
+
+    @Override
+    public double intersect(double ox, double oy, double oz, double dx, double dy, double dz) {
+        return intersect(position.x(), position.y(), position.z(), radius, ox, oy, oz, dx, dy, dz);
+    }
+
+    // Intersection test for a sphere given by its center and radius, shared with the packed
+    // primitive arrays.
+    static double intersect(double cx, double cy, double cz, double radius,
+            double ox, double oy, double oz, double dx, double dy, double dz) {
+        double lx = cx - ox;
+        double ly = cy - oy;
+        double lz = cz - oz;
+        // Distance along the ray to the point closest to the center, and the squared
+        // distance from that point to the center.
+        double tc = lx*dx + ly*dy + lz*dz;
+        double px = dx*tc - lx;
+        double py = dy*tc - ly;
+        double pz = dz*tc - lz;
+        double perpendicularSquared = px*px + py*py + pz*pz;
+        if (perpendicularSquared >= radius * radius) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double opposite = Math.sqrt(radius*radius - perpendicularSquared);
+        double distance1 = tc - opposite;
+        double distance2 = tc + opposite;
+        double delta = 0.000001;
+        if (distance2 <= delta) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return distance1 <= delta ? distance2 : distance1;
+    }
+
+    @Override
+    public void setNormal(TraceContext ctx) {
+        double nx = ctx.px - position.x();
+        double ny = ctx.py - position.y();
+        double nz = ctx.pz - position.z();
+        double rx = ctx.ox - position.x();
+        double ry = ctx.oy - position.y();
+        double rz = ctx.oz - position.z();
+        // Flip the normal inwards if the ray started inside the sphere.
+        double s = (rx*rx + ry*ry + rz*rz < radius * radius ? -1 : 1) / Math.sqrt(nx*nx + ny*ny + nz*nz);
+        ctx.nx = nx * s;
+        ctx.ny = ny * s;
+        ctx.nz = nz * s;
+    }
 }
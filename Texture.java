@@ -0,0 +1,201 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+// An image decoded once into a packed array of 0xAARRGGBB pixels. Textures are cached by
+// file, so every entity using the same file shares one Texture, and sampling is a plain
+// array lookup that doesn't lock or allocate.
+//
+// A chain of mipmaps, each half the size of the one before, is built when the texture is
+// created. Distant surfaces sample a smaller level, which keeps neighbouring samples close
+// together in memory and stops them from aliasing.
+public final class Texture {
+    private static final Map<String, Texture> cache = new HashMap<String, Texture>();
+
+    // File the texture was loaded from, or null if it was made in code.
+    private String file;
+
+    private final int width;
+    private final int height;
+    private final int[] pixels;
+
+    // Level 0 is the full-resolution image.
+    private final int[][] levels;
+    private final int[] levelWidths;
+    private final int[] levelHeights;
+
+    public Texture(int width, int height, int[] pixels) {
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+        int count = 1;
+        while ((width >> count) > 0 || (height >> count) > 0) {
+            count++;
+        }
+        levels = new int[count][];
+        levelWidths = new int[count];
+        levelHeights = new int[count];
+        levels[0] = pixels;
+        levelWidths[0] = width;
+        levelHeights[0] = height;
+        for (int i = 1; i < count; i++) {
+            levelWidths[i] = Math.max(1, width >> i);
+            levelHeights[i] = Math.max(1, height >> i);
+            levels[i] = downsample(levels[i - 1], levelWidths[i - 1], levelHeights[i - 1], levelWidths[i], levelHeights[i]);
+        }
+    }
+
+    // Averages each 2x2 block of a level into one pixel of the next level. When a dimension
+    // is already 1 it isn't halved, and the block is 1 pixel wide in that direction.
+    private static int[] downsample(int[] src, int sw, int sh, int w, int h) {
+        int[] dst = new int[w * h];
+        for (int y = 0; y < h; y++) {
+            int y0 = Math.min(y * 2, sh - 1);
+            int y1 = Math.min(y0 + (sh > h ? 1 : 0), sh - 1);
+            for (int x = 0; x < w; x++) {
+                int x0 = Math.min(x * 2, sw - 1);
+                int x1 = Math.min(x0 + (sw > w ? 1 : 0), sw - 1);
+                dst[y * w + x] = average(
+                    src[y0 * sw + x0], src[y0 * sw + x1],
+                    src[y1 * sw + x0], src[y1 * sw + x1]
+                );
+            }
+        }
+        return dst;
+    }
+
+    private static int average(int a, int b, int c, int d) {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            int sum = ((a >>> shift) & 0xff) + ((b >>> shift) & 0xff) + ((c >>> shift) & 0xff) + ((d >>> shift) & 0xff);
+            result |= ((sum + 2) / 4) << shift;
+        }
+        return result;
+    }
+
+    // Returns the texture for an image file, decoding it only the first time it is asked for.
+    // Returns null if the file doesn't exist or can't be decoded.
+    public static synchronized Texture load(String file) {
+        if (file == null || file.isEmpty()) {
+            return null;
+        }
+        String key;
+        try {
+            key = new File(file).getCanonicalPath();
+        } catch (IOException e) {
+            key = new File(file).getAbsolutePath();
+        }
+        if (cache.containsKey(key)) {
+            return cache.get(key);
+        }
+        Texture texture = null;
+        try {
+            BufferedImage image = ImageIO.read(new File(file));
+            if (image != null) {
+                int w = image.getWidth();
+                int h = image.getHeight();
+                texture = new Texture(w, h, image.getRGB(0, 0, w, h, null, 0, w));
+                texture.file = file;
+            }
+        } catch (IOException e) {
+        }
+        cache.put(key, texture);
+        return texture;
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    // Returns the 0xAARRGGBB average color of the whole texture, which is the single pixel of
+    // the smallest mipmap.
+    public int getAverageColor() {
+        return levels[levels.length - 1][0];
+    }
+
+    // Returns the 0xAARRGGBB color of a pixel.
+    public int getRGB(int x, int y) {
+        return pixels[y * width + x];
+    }
+
+    // Samples the texture at coordinates running from 0 to 1 across it, repeating outside
+    // that range. footprint is the size of the sample on the surface measured in texels of
+    // the full-resolution image, and picks the mipmap level.
+    public int sample(double u, double v, double footprint, TextureFilter filter) {
+        u -= Math.floor(u);
+        v -= Math.floor(v);
+        if (filter == TextureFilter.Nearest || footprint <= 1 && filter == TextureFilter.Mipmap) {
+            return texel(0, (int)(u * width), (int)(v * height));
+        }
+        double lod = footprint > 1 ? Math.log(footprint) / Math.log(2) : 0;
+        if (lod > levels.length - 1) {
+            lod = levels.length - 1;
+        }
+        switch (filter) {
+        case Mipmap: {
+            int level = (int)Math.round(lod);
+            return texel(level, (int)(u * levelWidths[level]), (int)(v * levelHeights[level]));
+        }
+        case Bilinear:
+            return bilinear((int)Math.round(lod), u, v);
+        default: {
+            int level = (int)lod;
+            if (level == levels.length - 1) {
+                return bilinear(level, u, v);
+            }
+            return lerp(bilinear(level, u, v), bilinear(level + 1, u, v), lod - level);
+        }
+        }
+    }
+
+    private int texel(int level, int x, int y) {
+        int w = levelWidths[level];
+        int h = levelHeights[level];
+        // Wrap around, which also guards against coordinates landing exactly on 1.
+        x %= w;
+        y %= h;
+        return levels[level][y * w + x];
+    }
+
+    private int bilinear(int level, double u, double v) {
+        int w = levelWidths[level];
+        int h = levelHeights[level];
+        double x = u * w - 0.5;
+        double y = v * h - 0.5;
+        int x0 = (int)Math.floor(x);
+        int y0 = (int)Math.floor(y);
+        double fx = x - x0;
+        double fy = y - y0;
+        int xa = (x0 + w) % w;
+        int xb = (x0 + 1) % w;
+        int ya = (y0 + h) % h;
+        int yb = (y0 + 1) % h;
+        int[] p = levels[level];
+        return lerp(
+            lerp(p[ya * w + xa], p[ya * w + xb], fx),
+            lerp(p[yb * w + xa], p[yb * w + xb], fx),
+            fy
+        );
+    }
+
+    private static int lerp(int a, int b, double t) {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            double ca = (a >>> shift) & 0xff;
+            double cb = (b >>> shift) & 0xff;
+            result |= ((int)(ca + (cb - ca) * t + 0.5) & 0xff) << shift;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,7 @@
+// How textures are sampled. Nearest always reads the full-resolution image. Mipmap reads the
+// nearest texel of the mipmap level that matches the size of the sample on the surface,
+// Bilinear blends the four nearest texels of that level, and Trilinear also blends
+// between the two nearest levels.
+public enum TextureFilter {
+    Nearest, Mipmap, Bilinear, Trilinear;
+}
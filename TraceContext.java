@@ -0,0 +1,88 @@
+// Per-thread scratch space for tracing rays without allocating. The ray being traced and
+// the closest hit found for it are kept as plain doubles and reused from ray to ray, so
+// the intersection and shading code never has to create Vector3 or Ray3 objects.
+public final class TraceContext {
+    private static final ThreadLocal<TraceContext> contexts = new ThreadLocal<TraceContext>() {
+        @Override
+        protected TraceContext initialValue() {
+            TraceContext ctx = new TraceContext();
+            Metrics.register(ctx);
+            return ctx;
+        }
+    };
+
+    // Origin and normalized direction of the ray.
+    public double ox, oy, oz;
+    public double dx, dy, dz;
+
+    // The closest entity hit by the last cast and the distance to it along the ray.
+    public Entity entity;
+    public double distance;
+    // Point of the hit and the normalized surface normal there, which always faces
+    // back towards the side the ray came from.
+    public double px, py, pz;
+    public double nx, ny, nz;
+
+    // The entity hit by the first ray of the last path traced by Scene.getRayColor, or null
+    // if it hit nothing. Later bounces overwrite entity but leave this alone.
+    public Entity firstEntity;
+
+    // Angle in radians covered by one sample, and the distance travelled by the path before
+    // the current ray. Together they give the size of a sample on the surface it hits,
+    // which picks the mipmap level when sampling textures.
+    public double spread;
+    public double pathLength;
+
+    // Limits on the work done for each path traced with this context.
+    public Quality quality = Quality.FULL;
+
+    // Number of rays cast with this context so far.
+    public long rays;
+    // Counters read by Metrics. Only the owning thread writes them, so they never contend.
+    // Rays cast for a reflection, through a transparent entity, and towards a light.
+    public long reflectionRays;
+    public long refractionRays;
+    public long shadowRays;
+    // Paths shaded and the bounces they took in total.
+    public long paths;
+    public long bounces;
+    // Entity intersection tests made by the accelerator.
+    public long intersectionTests;
+    // Pixels or samples rendered by the thread.
+    public long samples;
+    // Name of the thread the context belongs to.
+    public final String thread = Thread.currentThread().getName();
+
+    // Scratch space for Camera.project.
+    public final double[] screen = new double[3];
+
+    // Node stack used while walking a BVH.
+    int[] stack = new int[64];
+    // Lights selected for shading a point, and the stack used to find them.
+    int[] lights = new int[0];
+    int[] lightStack = new int[0];
+
+    private TraceContext() {
+    }
+
+    // Returns the context belonging to the calling thread.
+    public static TraceContext get() {
+        return contexts.get();
+    }
+
+    public void setRay(double ox, double oy, double oz, double dx, double dy, double dz) {
+        this.ox = ox;
+        this.oy = oy;
+        this.oz = oz;
+        this.dx = dx;
+        this.dy = dy;
+        this.dz = dz;
+    }
+
+    public void setRay(Ray3 ray) {
+        setRay(
+            ray.position.x(), ray.position.y(), ray.position.z(),
+            ray.direction.x(), ray.direction.y(), ray.direction.z()
+        );
+    }
+}
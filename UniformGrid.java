@@ -0,0 +1,552 @@
+import java.util.Arrays;
+import java.util.List;
+
+// Uniform grid over the entities of a scene. The scene's bounds are cut into equal cells,
+// each listing the entities whose bounds overlap it, and rays walk the cells they pass
+// through front to back with a 3D digital differential analyzer, stopping at the first cell
+// that contains a hit. For many small entities spread evenly through the scene this visits
+// fewer cells than a BVH visits nodes, but empty space and large entities make it slow.
+public final class UniformGrid implements Accelerator {
+    // Cells per entity the resolution is chosen for.
+    private static final double DENSITY = 2;
+    private static final int MAX_RESOLUTION = 512;
+    // Scenes smaller than this gain nothing from a grid over a BVH.
+    private static final int MIN_ENTITIES = 256;
+    // A grid is only worth using if at least this fraction of its cells hold something,
+    // entities are listed in no more than this many cells on average, and the cells an
+    // entity is listed in hold no more than this many entities on average. Clusters of
+    // entities in an otherwise empty scene end up crowded into a few cells.
+    private static final double MIN_OCCUPANCY = 0.25;
+    private static final double MAX_REFERENCES = 8;
+    private static final double MAX_CROWDING = 8;
+    // Every cell has room for a quarter more entities than it is filled with, and at least
+    // one more, so that moved entities can usually be listed in new cells without filling
+    // the whole grid again.
+    private static final int SPARE_FRACTION = 4;
+
+    // The entities in the order of the list the grid was built from, and their geometry
+    // packed in the same order.
+    private final Entity[] entities;
+    private final Primitives primitives;
+    private double minX, minY, minZ;
+    private double maxX, maxY, maxZ;
+    private int resX, resY, resZ;
+    private double cellX, cellY, cellZ;
+    // The entities of cell c are cellEntities[cellStart[c]] up to cellEntities[cellEnd[c]],
+    // and the cell has room up to cellEntities[cellStart[c + 1]]. Cells are numbered x first,
+    // then y, then z.
+    private int[] cellStart;
+    private int[] cellEnd;
+    private int[] cellEntities;
+
+    public UniformGrid(List<Entity> list) {
+        entities = list.toArray(new Entity[list.size()]);
+        primitives = new Primitives(entities);
+        fill();
+    }
+
+    // Returns true if a scene is large enough, and its entities spread evenly enough through
+    // its bounds, that a grid should trace it faster than a BVH. Only the number of entities
+    // in each cell is counted, so nothing is allocated for a grid that won't be used.
+    public static boolean suitsScene(List<Entity> list) {
+        int n = list.size();
+        if (n < MIN_ENTITIES) {
+            return false;
+        }
+        double[] bounds = sceneBounds(list);
+        int[] resolution = resolution(bounds, n);
+        int resX = resolution[0];
+        int resY = resolution[1];
+        int resZ = resolution[2];
+        double cellX = (bounds[3] - bounds[0]) / resX;
+        double cellY = (bounds[4] - bounds[1]) / resY;
+        double cellZ = (bounds[5] - bounds[2]) / resZ;
+        int cells = resX * resY * resZ;
+        int[] counts = new int[cells];
+        long references = 0;
+        for (Entity entity : list) {
+            Vector3 min = entity.getBoundsMin();
+            Vector3 max = entity.getBoundsMax();
+            int x0 = cell(min.x(), bounds[0], cellX, resX);
+            int y0 = cell(min.y(), bounds[1], cellY, resY);
+            int z0 = cell(min.z(), bounds[2], cellZ, resZ);
+            int x1 = cell(max.x(), bounds[0], cellX, resX);
+            int y1 = cell(max.y(), bounds[1], cellY, resY);
+            int z1 = cell(max.z(), bounds[2], cellZ, resZ);
+            references += (long)(x1 - x0 + 1) * (y1 - y0 + 1) * (z1 - z0 + 1);
+            if (references > MAX_REFERENCES * n) {
+                return false;
+            }
+            for (int z = z0; z <= z1; z++) {
+                for (int y = y0; y <= y1; y++) {
+                    for (int x = x0; x <= x1; x++) {
+                        counts[(z * resY + y) * resX + x]++;
+                    }
+                }
+            }
+        }
+        int occupied = 0;
+        long squares = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                occupied++;
+                squares += (long)count * count;
+            }
+        }
+        return occupied >= MIN_OCCUPANCY * cells && squares <= MAX_CROWDING * references;
+    }
+
+    // Returns the box around a list of entities, min x, y, z followed by max x, y, z. Flat
+    // scenes are given some depth so the volume inside doesn't vanish.
+    private static double[] sceneBounds(List<Entity> list) {
+        double minX, minY, minZ, maxX, maxY, maxZ;
+        minX = minY = minZ = Double.POSITIVE_INFINITY;
+        maxX = maxY = maxZ = Double.NEGATIVE_INFINITY;
+        for (Entity entity : list) {
+            Vector3 min = entity.getBoundsMin();
+            Vector3 max = entity.getBoundsMax();
+            minX = Math.min(minX, min.x());
+            minY = Math.min(minY, min.y());
+            minZ = Math.min(minZ, min.z());
+            maxX = Math.max(maxX, max.x());
+            maxY = Math.max(maxY, max.y());
+            maxZ = Math.max(maxZ, max.z());
+        }
+        double largest = Math.max(maxX - minX, Math.max(maxY - minY, maxZ - minZ));
+        double smallest = Math.max(largest * 1e-3, 1e-9);
+        return new double[]{
+            minX, minY, minZ,
+            minX + Math.max(maxX - minX, smallest),
+            minY + Math.max(maxY - minY, smallest),
+            minZ + Math.max(maxZ - minZ, smallest)
+        };
+    }
+
+    // Returns the number of cells along x, y and z for a grid of n entities over the given
+    // bounds. Cells are cube-shaped, and as many as the density asks for.
+    private static int[] resolution(double[] bounds, int n) {
+        double ex = bounds[3] - bounds[0];
+        double ey = bounds[4] - bounds[1];
+        double ez = bounds[5] - bounds[2];
+        double perLength = Math.cbrt(DENSITY * n / (ex * ey * ez));
+        return new int[]{resolution(ex * perLength), resolution(ey * perLength), resolution(ez * perLength)};
+    }
+
+    private static int resolution(double cells) {
+        return Math.max(1, Math.min(MAX_RESOLUTION, (int)Math.ceil(cells)));
+    }
+
+    // Chooses the bounds and resolution of the grid around the entities' current bounds and
+    // lists every entity in the cells its bounds overlap.
+    private void fill() {
+        int n = entities.length;
+        if (n == 0) {
+            resX = resY = resZ = 0;
+            cellStart = new int[1];
+            cellEnd = new int[0];
+            cellEntities = new int[0];
+            return;
+        }
+        double[] bounds = sceneBounds(Arrays.asList(entities));
+        int[] resolution = resolution(bounds, n);
+        cellX = (bounds[3] - bounds[0]) / resolution[0];
+        cellY = (bounds[4] - bounds[1]) / resolution[1];
+        cellZ = (bounds[5] - bounds[2]) / resolution[2];
+        // One more layer of cells on every side, so that entities moving a little out of the
+        // scene don't need the grid filled again.
+        resX = resolution[0] + 2;
+        resY = resolution[1] + 2;
+        resZ = resolution[2] + 2;
+        minX = bounds[0] - cellX;
+        minY = bounds[1] - cellY;
+        minZ = bounds[2] - cellZ;
+        maxX = bounds[3] + cellX;
+        maxY = bounds[4] + cellY;
+        maxZ = bounds[5] + cellZ;
+
+        // Count the entities of each cell, then place them after the counts and the room
+        // to spare are summed into starting offsets.
+        int cells = resX * resY * resZ;
+        int[] start = new int[cells + 1];
+        int[] range = new int[6];
+        for (int i = 0; i < n; i++) {
+            entityRange(entities[i], range);
+            for (int z = range[2]; z <= range[5]; z++) {
+                for (int y = range[1]; y <= range[4]; y++) {
+                    for (int x = range[0]; x <= range[3]; x++) {
+                        start[(z * resY + y) * resX + x + 1]++;
+                    }
+                }
+            }
+        }
+        for (int c = 0; c < cells; c++) {
+            int count = start[c + 1];
+            start[c + 1] = start[c] + count + count / SPARE_FRACTION + 1;
+        }
+        int[] end = new int[cells];
+        System.arraycopy(start, 0, end, 0, cells);
+        int[] list = new int[start[cells]];
+        for (int i = 0; i < n; i++) {
+            entityRange(entities[i], range);
+            for (int z = range[2]; z <= range[5]; z++) {
+                for (int y = range[1]; y <= range[4]; y++) {
+                    for (int x = range[0]; x <= range[3]; x++) {
+                        list[end[(z * resY + y) * resX + x]++] = i;
+                    }
+                }
+            }
+        }
+        cellStart = start;
+        cellEnd = end;
+        cellEntities = list;
+    }
+
+    // Stores the lowest and highest cell coordinates that an entity's bounds overlap.
+    private void entityRange(Entity entity, int[] range) {
+        Vector3 min = entity.getBoundsMin();
+        Vector3 max = entity.getBoundsMax();
+        range[0] = cell(min.x(), minX, cellX, resX);
+        range[1] = cell(min.y(), minY, cellY, resY);
+        range[2] = cell(min.z(), minZ, cellZ, resZ);
+        range[3] = cell(max.x(), minX, cellX, resX);
+        range[4] = cell(max.y(), minY, cellY, resY);
+        range[5] = cell(max.z(), minZ, cellZ, resZ);
+    }
+
+    // Stores the lowest and highest cell coordinates that the bounds of a primitive, as
+    // packed when it was last updated, overlap.
+    private void primitiveRange(int i, int[] range) {
+        double x = primitives.centers[i * 3];
+        double y = primitives.centers[i * 3 + 1];
+        double z = primitives.centers[i * 3 + 2];
+        double e = primitives.extents[i];
+        range[0] = cell(x - e, minX, cellX, resX);
+        range[1] = cell(y - e, minY, cellY, resY);
+        range[2] = cell(z - e, minZ, cellZ, resZ);
+        range[3] = cell(x + e, minX, cellX, resX);
+        range[4] = cell(y + e, minY, cellY, resY);
+        range[5] = cell(z + e, minZ, cellZ, resZ);
+    }
+
+    // Returns true if the bounds of a primitive, as packed when it was last updated, lie
+    // within the grid.
+    private boolean primitiveInside(int i) {
+        double x = primitives.centers[i * 3];
+        double y = primitives.centers[i * 3 + 1];
+        double z = primitives.centers[i * 3 + 2];
+        double e = primitives.extents[i];
+        return x - e >= minX && y - e >= minY && z - e >= minZ &&
+            x + e <= maxX && y + e <= maxY && z + e <= maxZ;
+    }
+
+    private static int cell(double v, double min, double size, int resolution) {
+        int c = (int)((v - min) / size);
+        return c < 0 ? 0 : (c >= resolution ? resolution - 1 : c);
+    }
+
+    @Override
+    public boolean castRay(TraceContext ctx) {
+        ctx.entity = null;
+        ctx.distance = Double.POSITIVE_INFINITY;
+        if (cellEntities.length == 0) {
+            return false;
+        }
+        double ox = ctx.ox;
+        double oy = ctx.oy;
+        double oz = ctx.oz;
+        double dx = ctx.dx;
+        double dy = ctx.dy;
+        double dz = ctx.dz;
+        double ix = 1 / dx;
+        double iy = 1 / dy;
+        double iz = 1 / dz;
+
+        // Clip the ray to the grid's bounds. As in Cube.intersect, a ray parallel to an axis
+        // is checked against that axis's bounds directly, since a ray starting on one of
+        // them would otherwise give zero times infinity.
+        double tmin = 0;
+        double tmax = Double.POSITIVE_INFINITY;
+        if (!Double.isInfinite(ix)) {
+            double t1 = (minX - ox) * ix;
+            double t2 = (maxX - ox) * ix;
+            tmin = Math.max(tmin, Math.min(t1, t2));
+            tmax = Math.min(tmax, Math.max(t1, t2));
+        } else if (ox < minX || ox > maxX) {
+            return false;
+        }
+        if (!Double.isInfinite(iy)) {
+            double t1 = (minY - oy) * iy;
+            double t2 = (maxY - oy) * iy;
+            tmin = Math.max(tmin, Math.min(t1, t2));
+            tmax = Math.min(tmax, Math.max(t1, t2));
+        } else if (oy < minY || oy > maxY) {
+            return false;
+        }
+        if (!Double.isInfinite(iz)) {
+            double t1 = (minZ - oz) * iz;
+            double t2 = (maxZ - oz) * iz;
+            tmin = Math.max(tmin, Math.min(t1, t2));
+            tmax = Math.min(tmax, Math.max(t1, t2));
+        } else if (oz < minZ || oz > maxZ) {
+            return false;
+        }
+        if (!(tmin <= tmax)) {
+            return false;
+        }
+
+        // Start in the cell where the ray enters the grid, and find how far along the ray
+        // it next crosses a cell boundary on each axis and how far apart those crossings are.
+        int x = cell(ox + dx * tmin, minX, cellX, resX);
+        int y = cell(oy + dy * tmin, minY, cellY, resY);
+        int z = cell(oz + dz * tmin, minZ, cellZ, resZ);
+        int stepX = dx > 0 ? 1 : (dx < 0 ? -1 : 0);
+        int stepY = dy > 0 ? 1 : (dy < 0 ? -1 : 0);
+        int stepZ = dz > 0 ? 1 : (dz < 0 ? -1 : 0);
+        double nextX = stepX == 0 ? Double.POSITIVE_INFINITY : (minX + (x + (stepX > 0 ? 1 : 0)) * cellX - ox) * ix;
+        double nextY = stepY == 0 ? Double.POSITIVE_INFINITY : (minY + (y + (stepY > 0 ? 1 : 0)) * cellY - oy) * iy;
+        double nextZ = stepZ == 0 ? Double.POSITIVE_INFINITY : (minZ + (z + (stepZ > 0 ? 1 : 0)) * cellZ - oz) * iz;
+        double deltaX = stepX == 0 ? 0 : cellX * Math.abs(ix);
+        double deltaY = stepY == 0 ? 0 : cellY * Math.abs(iy);
+        double deltaZ = stepZ == 0 ? 0 : cellZ * Math.abs(iz);
+
+        Primitives primitives = this.primitives;
+        int[] cellStart = this.cellStart;
+        int[] cellEnd = this.cellEnd;
+        int[] cellEntities = this.cellEntities;
+        int closest = -1;
+        double closestDistance = Double.POSITIVE_INFINITY;
+        long tests = 0;
+        while (true) {
+            int c = (z * resY + y) * resX + x;
+            int end = cellEnd[c];
+            tests += end - cellStart[c];
+            for (int k = cellStart[c]; k < end; k++) {
+                int i = cellEntities[k];
+                double distance = primitives.intersect(i, ox, oy, oz, dx, dy, dz, ix, iy, iz);
+                if (distance < closestDistance) {
+                    closest = i;
+                    closestDistance = distance;
+                }
+            }
+            // Entities can reach past the cell, so a hit only ends the walk once the ray
+            // leaves the cell beyond it. Every entity it could still hit closer has been
+            // tested by then.
+            double leave = Math.min(nextX, Math.min(nextY, nextZ));
+            if (closestDistance <= leave || leave > tmax) {
+                break;
+            }
+            if (nextX == leave) {
+                x += stepX;
+                nextX += deltaX;
+                if (x < 0 || x >= resX) {
+                    break;
+                }
+            } else if (nextY == leave) {
+                y += stepY;
+                nextY += deltaY;
+                if (y < 0 || y >= resY) {
+                    break;
+                }
+            } else {
+                z += stepZ;
+                nextZ += deltaZ;
+                if (z < 0 || z >= resZ) {
+                    break;
+                }
+            }
+        }
+        ctx.intersectionTests += tests;
+        if (closest < 0) {
+            return false;
+        }
+        ctx.entity = entities[closest];
+        ctx.distance = closestDistance;
+        return true;
+    }
+
+    // Transparent entities let light through, so they are skipped. The walk stops at the
+    // first blocker found.
+    @Override
+    public boolean occluded(TraceContext ctx, double maxDistance) {
+        if (cellEntities.length == 0) {
+            return false;
+        }
+        double ox = ctx.ox;
+        double oy = ctx.oy;
+        double oz = ctx.oz;
+        double dx = ctx.dx;
+        double dy = ctx.dy;
+        double dz = ctx.dz;
+        double ix = 1 / dx;
+        double iy = 1 / dy;
+        double iz = 1 / dz;
+
+        // Clip the ray to the grid's bounds and the distance to check, as in castRay.
+        double tmin = 0;
+        double tmax = maxDistance;
+        if (!Double.isInfinite(ix)) {
+            double t1 = (minX - ox) * ix;
+            double t2 = (maxX - ox) * ix;
+            tmin = Math.max(tmin, Math.min(t1, t2));
+            tmax = Math.min(tmax, Math.max(t1, t2));
+        } else if (ox < minX || ox > maxX) {
+            return false;
+        }
+        if (!Double.isInfinite(iy)) {
+            double t1 = (minY - oy) * iy;
+            double t2 = (maxY - oy) * iy;
+            tmin = Math.max(tmin, Math.min(t1, t2));
+            tmax = Math.min(tmax, Math.max(t1, t2));
+        } else if (oy < minY || oy > maxY) {
+            return false;
+        }
+        if (!Double.isInfinite(iz)) {
+            double t1 = (minZ - oz) * iz;
+            double t2 = (maxZ - oz) * iz;
+            tmin = Math.max(tmin, Math.min(t1, t2));
+            tmax = Math.min(tmax, Math.max(t1, t2));
+        } else if (oz < minZ || oz > maxZ) {
+            return false;
+        }
+        if (!(tmin <= tmax)) {
+            return false;
+        }
+
+        int x = cell(ox + dx * tmin, minX, cellX, resX);
+        int y = cell(oy + dy * tmin, minY, cellY, resY);
+        int z = cell(oz + dz * tmin, minZ, cellZ, resZ);
+        int stepX = dx > 0 ? 1 : (dx < 0 ? -1 : 0);
+        int stepY = dy > 0 ? 1 : (dy < 0 ? -1 : 0);
+        int stepZ = dz > 0 ? 1 : (dz < 0 ? -1 : 0);
+        double nextX = stepX == 0 ? Double.POSITIVE_INFINITY : (minX + (x + (stepX > 0 ? 1 : 0)) * cellX - ox) * ix;
+        double nextY = stepY == 0 ? Double.POSITIVE_INFINITY : (minY + (y + (stepY > 0 ? 1 : 0)) * cellY - oy) * iy;
+        double nextZ = stepZ == 0 ? Double.POSITIVE_INFINITY : (minZ + (z + (stepZ > 0 ? 1 : 0)) * cellZ - oz) * iz;
+        double deltaX = stepX == 0 ? 0 : cellX * Math.abs(ix);
+        double deltaY = stepY == 0 ? 0 : cellY * Math.abs(iy);
+        double deltaZ = stepZ == 0 ? 0 : cellZ * Math.abs(iz);
+
+        Primitives primitives = this.primitives;
+        int[] cellStart = this.cellStart;
+        int[] cellEnd = this.cellEnd;
+        int[] cellEntities = this.cellEntities;
+        long tests = 0;
+        while (true) {
+            int c = (z * resY + y) * resX + x;
+            int end = cellEnd[c];
+            for (int k = cellStart[c]; k < end; k++) {
+                int i = cellEntities[k];
+                if (!primitives.isTransparent(i) && primitives.occludes(i, ox, oy, oz, dx, dy, dz, ix, iy, iz, maxDistance)) {
+                    ctx.intersectionTests += tests + k - cellStart[c] + 1;
+                    return true;
+                }
+            }
+            tests += end - cellStart[c];
+            double leave = Math.min(nextX, Math.min(nextY, nextZ));
+            if (leave > tmax) {
+                break;
+            }
+            if (nextX == leave) {
+                x += stepX;
+                nextX += deltaX;
+                if (x < 0 || x >= resX) {
+                    break;
+                }
+            } else if (nextY == leave) {
+                y += stepY;
+                nextY += deltaY;
+                if (y < 0 || y >= resY) {
+                    break;
+                }
+            } else {
+                z += stepZ;
+                nextZ += deltaZ;
+                if (z < 0 || z >= resZ) {
+                    break;
+                }
+            }
+        }
+        ctx.intersectionTests += tests;
+        return false;
+    }
+
+    // Neighbouring rays mostly walk different cells, so there is nothing to share and the
+    // rays of the packet are walked one at a time.
+    @Override
+    public void castPacket(RayPacket p) {
+        TraceContext ctx = TraceContext.get();
+        for (int i = 0; i < p.count; i++) {
+            ctx.setRay(p.ox[i], p.oy[i], p.oz[i], p.dx[i], p.dy[i], p.dz[i]);
+            castRay(ctx);
+            p.entity[i] = ctx.entity;
+            p.distance[i] = ctx.distance;
+        }
+    }
+
+    // Each moved entity is taken out of the cells it was listed in and listed in the cells
+    // its new bounds overlap. The grid is only filled again if an entity moves out of its
+    // bounds or into a cell that has no room left.
+    @Override
+    public void refit(int[] moved) {
+        int[] range = new int[6];
+        for (int index : moved) {
+            // Only spheres and cubes have their bounds packed, which tells the cells they
+            // were listed in.
+            if (primitives.kinds[index] == Primitives.OTHER) {
+                refill(moved);
+                return;
+            }
+            primitiveRange(index, range);
+            unlist(index, range);
+            primitives.update(index);
+            if (!primitiveInside(index)) {
+                refill(moved);
+                return;
+            }
+            primitiveRange(index, range);
+            if (!list(index, range)) {
+                refill(moved);
+                return;
+            }
+        }
+    }
+
+    // Takes an entity out of every cell in a range.
+    private void unlist(int index, int[] range) {
+        for (int z = range[2]; z <= range[5]; z++) {
+            for (int y = range[1]; y <= range[4]; y++) {
+                for (int x = range[0]; x <= range[3]; x++) {
+                    int c = (z * resY + y) * resX + x;
+                    for (int k = cellStart[c]; k < cellEnd[c]; k++) {
+                        if (cellEntities[k] == index) {
+                            cellEntities[k] = cellEntities[--cellEnd[c]];
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // Lists an entity in every cell in a range. Returns false if a cell has no room left.
+    private boolean list(int index, int[] range) {
+        for (int z = range[2]; z <= range[5]; z++) {
+            for (int y = range[1]; y <= range[4]; y++) {
+                for (int x = range[0]; x <= range[3]; x++) {
+                    int c = (z * resY + y) * resX + x;
+                    if (cellEnd[c] == cellStart[c + 1]) {
+                        return false;
+                    }
+                    cellEntities[cellEnd[c]++] = index;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void refill(int[] moved) {
+        for (int index : moved) {
+            primitives.update(index);
+        }
+        fill();
+    }
+}
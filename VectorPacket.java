@@ -0,0 +1,148 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// The lane loops of RayPacket written with the Vector API, so that each instruction tests
+// as many rays as the CPU's vector registers hold doubles: 8 with AVX-512 and 4 with AVX2.
+// The operations are the ones BVH.enter, Sphere.intersect and Cube.intersect do on a single
+// ray, in the same order, so the results are exactly the same.
+//
+// The jdk.incubator.vector module is only there when the JVM is started with
+// "--add-modules jdk.incubator.vector", so this class must only be used when
+// RayPacket.VECTOR_API is set. Otherwise it is never loaded.
+final class VectorPacket {
+    // Packets are split into whole vectors, so a vector can't have more lanes than a packet.
+    private static final VectorSpecies<Double> SPECIES =
+        DoubleVector.SPECIES_PREFERRED.length() <= RayPacket.SIZE ? DoubleVector.SPECIES_PREFERRED : DoubleVector.SPECIES_256;
+    private static final double INFINITY = Double.POSITIVE_INFINITY;
+
+    private VectorPacket() {
+    }
+
+    // Same as RayPacket.enter.
+    static boolean enter(RayPacket p, double[] bounds, int b) {
+        DoubleVector minX = DoubleVector.broadcast(SPECIES, bounds[b]);
+        DoubleVector minY = DoubleVector.broadcast(SPECIES, bounds[b + 1]);
+        DoubleVector minZ = DoubleVector.broadcast(SPECIES, bounds[b + 2]);
+        DoubleVector maxX = DoubleVector.broadcast(SPECIES, bounds[b + 3]);
+        DoubleVector maxY = DoubleVector.broadcast(SPECIES, bounds[b + 4]);
+        DoubleVector maxZ = DoubleVector.broadcast(SPECIES, bounds[b + 5]);
+        boolean any = false;
+        for (int i = 0; i < p.count; i += SPECIES.length()) {
+            DoubleVector ox = DoubleVector.fromArray(SPECIES, p.ox, i);
+            DoubleVector oy = DoubleVector.fromArray(SPECIES, p.oy, i);
+            DoubleVector oz = DoubleVector.fromArray(SPECIES, p.oz, i);
+            DoubleVector ix = DoubleVector.fromArray(SPECIES, p.ix, i);
+            DoubleVector iy = DoubleVector.fromArray(SPECIES, p.iy, i);
+            DoubleVector iz = DoubleVector.fromArray(SPECIES, p.iz, i);
+            DoubleVector t1 = minX.sub(ox).mul(ix);
+            DoubleVector t2 = maxX.sub(ox).mul(ix);
+            DoubleVector tmin = t1.min(t2);
+            DoubleVector tmax = t1.max(t2);
+            t1 = minY.sub(oy).mul(iy);
+            t2 = maxY.sub(oy).mul(iy);
+            tmin = tmin.max(t1.min(t2));
+            tmax = tmax.min(t1.max(t2));
+            t1 = minZ.sub(oz).mul(iz);
+            t2 = maxZ.sub(oz).mul(iz);
+            tmin = tmin.max(t1.min(t2)).max(0);
+            tmax = tmax.min(t1.max(t2));
+            DoubleVector distance = DoubleVector.fromArray(SPECIES, p.distance, i);
+            VectorMask<Double> hit = SPECIES.indexInRange(i, p.count)
+                .and(tmax.compare(VectorOperators.GE, 0))
+                .and(tmin.compare(VectorOperators.LE, tmax))
+                .and(tmin.compare(VectorOperators.LT, distance));
+            tmin.blend(INFINITY, hit.not()).intoArray(p.enter, i);
+            any |= hit.anyTrue();
+        }
+        return any;
+    }
+
+    // Same as RayPacket.intersect, for a sphere or a cube.
+    static int intersect(RayPacket p, Primitives primitives, int e, Entity entity) {
+        int c = e * 3;
+        DoubleVector cx = DoubleVector.broadcast(SPECIES, primitives.centers[c]);
+        DoubleVector cy = DoubleVector.broadcast(SPECIES, primitives.centers[c + 1]);
+        DoubleVector cz = DoubleVector.broadcast(SPECIES, primitives.centers[c + 2]);
+        double extent = primitives.extents[e];
+        boolean sphere = primitives.kinds[e] == Primitives.SPHERE;
+        int tests = 0;
+        for (int i = 0; i < p.count; i += SPECIES.length()) {
+            DoubleVector enter = DoubleVector.fromArray(SPECIES, p.enter, i);
+            VectorMask<Double> active = enter.compare(VectorOperators.NE, INFINITY);
+            if (!active.anyTrue()) {
+                continue;
+            }
+            tests += active.trueCount();
+            DoubleVector t = sphere ? intersectSphere(p, i, cx, cy, cz, extent) : intersectCube(p, i, cx, cy, cz, extent);
+            DoubleVector distance = DoubleVector.fromArray(SPECIES, p.distance, i);
+            VectorMask<Double> closer = active.and(t.compare(VectorOperators.LT, distance));
+            if (!closer.anyTrue()) {
+                continue;
+            }
+            t.intoArray(p.distance, i, closer);
+            for (long lanes = closer.toLong(); lanes != 0; lanes &= lanes - 1) {
+                p.entity[i + Long.numberOfTrailingZeros(lanes)] = entity;
+            }
+        }
+        return tests;
+    }
+
+    // Sphere.intersect for the lanes starting at i.
+    private static DoubleVector intersectSphere(RayPacket p, int i,
+            DoubleVector cx, DoubleVector cy, DoubleVector cz, double radius) {
+        DoubleVector dx = DoubleVector.fromArray(SPECIES, p.dx, i);
+        DoubleVector dy = DoubleVector.fromArray(SPECIES, p.dy, i);
+        DoubleVector dz = DoubleVector.fromArray(SPECIES, p.dz, i);
+        DoubleVector lx = cx.sub(DoubleVector.fromArray(SPECIES, p.ox, i));
+        DoubleVector ly = cy.sub(DoubleVector.fromArray(SPECIES, p.oy, i));
+        DoubleVector lz = cz.sub(DoubleVector.fromArray(SPECIES, p.oz, i));
+        DoubleVector tc = lx.mul(dx).add(ly.mul(dy)).add(lz.mul(dz));
+        DoubleVector px = dx.mul(tc).sub(lx);
+        DoubleVector py = dy.mul(tc).sub(ly);
+        DoubleVector pz = dz.mul(tc).sub(lz);
+        DoubleVector perpendicularSquared = px.mul(px).add(py.mul(py)).add(pz.mul(pz));
+        double radiusSquared = radius * radius;
+        VectorMask<Double> miss = perpendicularSquared.compare(VectorOperators.GE, radiusSquared);
+        DoubleVector opposite = DoubleVector.broadcast(SPECIES, radiusSquared).sub(perpendicularSquared).sqrt();
+        DoubleVector distance1 = tc.sub(opposite);
+        DoubleVector distance2 = tc.add(opposite);
+        double delta = 0.000001;
+        miss = miss.or(distance2.compare(VectorOperators.LE, delta));
+        return distance2.blend(distance1, distance1.compare(VectorOperators.GT, delta)).blend(INFINITY, miss);
+    }
+
+    // Cube.intersect for the lanes starting at i.
+    private static DoubleVector intersectCube(RayPacket p, int i,
+            DoubleVector cx, DoubleVector cy, DoubleVector cz, double hs) {
+        DoubleVector ox = DoubleVector.fromArray(SPECIES, p.ox, i);
+        DoubleVector oy = DoubleVector.fromArray(SPECIES, p.oy, i);
+        DoubleVector oz = DoubleVector.fromArray(SPECIES, p.oz, i);
+        DoubleVector ix = DoubleVector.fromArray(SPECIES, p.ix, i);
+        DoubleVector iy = DoubleVector.fromArray(SPECIES, p.iy, i);
+        DoubleVector iz = DoubleVector.fromArray(SPECIES, p.iz, i);
+        // Lanes parallel to a pair of faces miss if they don't run between them, and are
+        // otherwise not limited by them.
+        VectorMask<Double> parallel = ix.abs().compare(VectorOperators.EQ, INFINITY);
+        VectorMask<Double> miss = parallel.and(ox.sub(cx).abs().compare(VectorOperators.GT, hs));
+        DoubleVector t1 = cx.sub(hs).sub(ox).mul(ix);
+        DoubleVector t2 = cx.add(hs).sub(ox).mul(ix);
+        DoubleVector near = t1.min(t2).blend(Double.NEGATIVE_INFINITY, parallel);
+        DoubleVector far = t1.max(t2).blend(INFINITY, parallel);
+        parallel = iy.abs().compare(VectorOperators.EQ, INFINITY);
+        miss = miss.or(parallel.and(oy.sub(cy).abs().compare(VectorOperators.GT, hs)));
+        t1 = cy.sub(hs).sub(oy).mul(iy);
+        t2 = cy.add(hs).sub(oy).mul(iy);
+        near = near.max(t1.min(t2)).blend(near, parallel);
+        far = far.min(t1.max(t2)).blend(far, parallel);
+        parallel = iz.abs().compare(VectorOperators.EQ, INFINITY);
+        miss = miss.or(parallel.and(oz.sub(cz).abs().compare(VectorOperators.GT, hs)));
+        t1 = cz.sub(hs).sub(oz).mul(iz);
+        t2 = cz.add(hs).sub(oz).mul(iz);
+        near = near.max(t1.min(t2)).blend(near, parallel);
+        far = far.min(t1.max(t2)).blend(far, parallel);
+        miss = miss.or(near.compare(VectorOperators.GT, far)).or(far.compare(VectorOperators.LT, 0.00001));
+        return far.blend(near, near.compare(VectorOperators.GE, 0.00001)).blend(INFINITY, miss);
+    }
+}
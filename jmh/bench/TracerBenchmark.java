@@ -0,0 +1,86 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The cases of "java Main --benchmark" run under JMH, which adds forked JVMs, dead code
+// and constant folding protection and profilers. Build and run with
+//
+//     mvn -P jmh package
+//     java -jar target/benchmarks.jar -p benchmark="Scene.castRay entities=10000"
+//
+// from the top directory, since some cases load default_scene.txt. JMH won't generate
+// benchmarks for a class in the default package, and a class in a package can't refer to
+// one in the default package, so the cases are looked up by name through reflection.
+//
+// The score of run counts batches. The operations counter counts the same operations as
+// "java Main --benchmark", such as rays cast or frames rendered, so its score per second is
+// comparable to the hand-rolled results.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class TracerBenchmark {
+    @Param({
+        "Sphere.collide",
+        "Sphere.intersect",
+        "Cube.collide",
+        "Cube.collideFaces",
+        "Cube.intersect",
+        "Camera.getRay",
+        "Scene.castRay entities=100",
+        "Scene.castRay entities=1000",
+        "Scene.castRay entities=10000",
+        "Scene.castRay entities=100000",
+        "Scene.getRayColor surface=Specular",
+        "Scene.getRayColor surface=Diffuse",
+        "Scene.getRayColor surface=Transparent",
+        "frame scene=default_scene.txt size=640x360",
+        "frame scene=default_scene.txt packets size=640x360",
+        "frame entities=1000 size=640x360",
+        "frame entities=1000 packets size=640x360",
+        "frame entities=10000 size=640x360",
+        "frame entities=10000 packets size=640x360"
+    })
+    public String benchmark;
+
+    private LongSupplier batch;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long operations;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            operations = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        batch = (LongSupplier)Class.forName("Benchmark").getMethod("find", String.class).invoke(null, benchmark);
+    }
+
+    @Benchmark
+    public long run(Counters counters) {
+        long operations = batch.getAsLong();
+        counters.operations += operations;
+        return operations;
+    }
+}
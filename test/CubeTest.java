@@ -0,0 +1,62 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+// The slab test in Cube.collide and Cube.intersect must find the same hits as the reference
+// face-by-face test in Cube.collideFaces.
+class CubeTest {
+    private static final int RAYS = 100000;
+    private static final double TOLERANCE = 1e-9;
+
+    @Test
+    void slabTestMatchesFaceTest() {
+        Random random = new Random(1);
+        Cube cube = new Cube(new Vector3(0.5, -0.25, 1), 2, Surface.Diffuse, "");
+        int hits = 0;
+        int inside = 0;
+        for (int i = 0; i < RAYS; i++) {
+            // Mostly rays from outside aimed near the cube, and some starting inside it.
+            Vector3 origin = i % 8 == 0 ? randomVector(random, 0.9) : randomVector(random, 10);
+            origin = origin.plus(cube.position);
+            Vector3 target = randomVector(random, 1.5).plus(cube.position);
+            Ray3 ray = new Ray3(origin, target.minus(origin).normalize());
+
+            Ray3 expected = cube.collideFaces(ray);
+            Ray3 actual = cube.collide(ray);
+            double distance = cube.intersect(
+                origin.x(), origin.y(), origin.z(),
+                ray.direction.x(), ray.direction.y(), ray.direction.z()
+            );
+            if (expected == null) {
+                assertNull(actual, "ray " + i + " should miss");
+                assertEquals(Double.POSITIVE_INFINITY, distance, "ray " + i + " should miss");
+                continue;
+            }
+            hits++;
+            if (i % 8 == 0) {
+                inside++;
+            }
+            assertNotNull(actual, "ray " + i + " should hit");
+            double expectedDistance = expected.position.minus(origin).length();
+            assertEquals(expectedDistance, actual.position.minus(origin).length(), TOLERANCE, "ray " + i);
+            assertEquals(expectedDistance, distance, TOLERANCE, "ray " + i);
+            assertEquals(expected.direction.x(), actual.direction.x(), 0, "normal of ray " + i);
+            assertEquals(expected.direction.y(), actual.direction.y(), 0, "normal of ray " + i);
+            assertEquals(expected.direction.z(), actual.direction.z(), 0, "normal of ray " + i);
+        }
+        assertTrue(hits > RAYS / 4, hits + " hits");
+        assertTrue(inside > 0);
+    }
+
+    private static Vector3 randomVector(Random random, double extent) {
+        return new Vector3(
+            (random.nextDouble() * 2 - 1) * extent,
+            (random.nextDouble() * 2 - 1) * extent,
+            (random.nextDouble() * 2 - 1) * extent
+        );
+    }
+}
@@ -0,0 +1,108 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+// Tracing primary rays as packets must find exactly the hits that tracing them one at a time
+// does, both with the Vector API lanes of VectorPacket and with the plain loops used without
+// it. The build runs the tests with jdk.incubator.vector added.
+class PacketTest {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 180;
+    // Blocks of 15 pixels, which fill neither a packet nor a whole number of vectors.
+    private static final int BLOCK_WIDTH = 3;
+    private static final int BLOCK_HEIGHT = 5;
+
+    @Test
+    void vectorAPIIsAvailable() {
+        assertTrue(RayPacket.VECTOR_API);
+    }
+
+    @Test
+    void vectorPacketsMatchSingleRays() throws Exception {
+        checkPackets(true);
+    }
+
+    @Test
+    void scalarPacketsMatchSingleRays() throws Exception {
+        checkPackets(false);
+    }
+
+    private static void checkPackets(boolean vectors) throws Exception {
+        Scene[] scenes = new Scene[]{new Scene("default_scene.txt"), Benchmark.generateScene(2000, 3)};
+        for (Scene scene : scenes) {
+            scene.acceleration = Acceleration.BVH;
+            scene.build();
+            TraceContext ctx = TraceContext.get();
+            RayPacket packet = RayPacket.get();
+            packet.vectors = vectors;
+            int hits = 0;
+            try {
+                // Blocks at the right edge are cut short, leaving even more lanes unused.
+                for (int by = 0; by < HEIGHT; by += BLOCK_HEIGHT) {
+                    for (int bx = 0; bx < WIDTH; bx += BLOCK_WIDTH) {
+                        packet.clear();
+                        for (int y = by; y < by + BLOCK_HEIGHT && y < HEIGHT; y++) {
+                            for (int x = bx; x < bx + BLOCK_WIDTH && x < WIDTH; x++) {
+                                scene.camera.getRay((x + 0.5) / WIDTH, 1 - (y + 0.5) / HEIGHT, (double)WIDTH / HEIGHT, ctx);
+                                packet.add(ctx, x, y);
+                            }
+                        }
+                        hits += checkPacket(scene, packet);
+                    }
+                }
+            } finally {
+                packet.vectors = RayPacket.VECTOR_API;
+            }
+            assertTrue(hits > WIDTH * HEIGHT / 2, hits + " hits");
+        }
+    }
+
+    // Rays along the axes have infinite inverse directions, which the cube test handles
+    // apart from the rest.
+    @Test
+    void axisParallelRaysMatchSingleRays() throws Exception {
+        Scene scene = Benchmark.generateScene(2000, 3);
+        scene.acceleration = Acceleration.BVH;
+        scene.build();
+        TraceContext ctx = TraceContext.get();
+        RayPacket packet = RayPacket.get();
+        Random random = new Random(2);
+        int hits = 0;
+        for (int n = 0; n < 1000; n++) {
+            packet.clear();
+            for (int i = 0; i < RayPacket.SIZE; i++) {
+                double[] direction = new double[3];
+                direction[random.nextInt(3)] = random.nextBoolean() ? 1 : -1;
+                ctx.setRay(
+                    (random.nextDouble() * 2 - 1) * 40, (random.nextDouble() * 2 - 1) * 40, (random.nextDouble() * 2 - 1) * 40,
+                    direction[0], direction[1], direction[2]
+                );
+                packet.add(ctx, i, n);
+            }
+            hits += checkPacket(scene, packet);
+        }
+        assertTrue(hits > 0);
+    }
+
+    // Casts the packet and each of its rays alone, and returns the number of rays that hit
+    // something.
+    private static int checkPacket(Scene scene, RayPacket packet) {
+        TraceContext ctx = TraceContext.get();
+        scene.castPacket(packet);
+        int hits = 0;
+        for (int i = 0; i < packet.count; i++) {
+            ctx.setRay(packet.ox[i], packet.oy[i], packet.oz[i], packet.dx[i], packet.dy[i], packet.dz[i]);
+            scene.castRay(ctx);
+            String ray = "ray " + packet.x[i] + ", " + packet.y[i];
+            assertSame(ctx.entity, packet.entity[i], ray);
+            if (ctx.entity != null) {
+                assertEquals(ctx.distance, packet.distance[i], 0, ray);
+                hits++;
+            }
+        }
+        return hits;
+    }
+}
@@ -0,0 +1,106 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Dimension;
+import java.time.Duration;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+// Edits posted to a scene between frames are shown by tracing again only the pixels they
+// could affect, and the result must match rendering the edited scene from scratch.
+class SceneEditTest {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 180;
+
+    private interface Edit {
+        void apply(Scene scene);
+    }
+
+    @Test
+    void movingAnEntityRendersLikeAFullFrame() throws Exception {
+        checkEdit(new Edit() {
+            @Override
+            public void apply(Scene scene) {
+                scene.moveEntity(1, scene.entities.get(1).position.plus(new Vector3(0.3, 0.2, 0)));
+            }
+        });
+    }
+
+    @Test
+    void removingAnEntityRendersLikeAFullFrame() throws Exception {
+        checkEdit(new Edit() {
+            @Override
+            public void apply(Scene scene) {
+                scene.removeEntity(1);
+            }
+        });
+    }
+
+    @Test
+    void postingAnEditWakesTheMainLoop() throws Exception {
+        final Scene scene = new Scene("default_scene.txt");
+        final Input input = new Input(new Config());
+        scene.onPost = new Runnable() {
+            @Override
+            public void run() {
+                input.wake();
+            }
+        };
+        Thread editor = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                }
+                scene.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        scene.removeEntity(0);
+                    }
+                });
+            }
+        };
+        editor.start();
+        assertTimeoutPreemptively(Duration.ofSeconds(10), new Executable() {
+            @Override
+            public void execute() {
+                input.waitForInput();
+            }
+        });
+        editor.join();
+    }
+
+    private static void checkEdit(final Edit edit) throws Exception {
+        final Scene scene = new Scene("default_scene.txt");
+        RayTracer incremental = renderer(scene);
+        assertTrue(incremental.renderProgressively());
+        scene.post(new Runnable() {
+            @Override
+            public void run() {
+                edit.apply(scene);
+            }
+        });
+        incremental.update();
+        assertTrue(incremental.renderProgressively());
+        assertTrue(incremental.changedPixels > 0);
+        assertTrue(incremental.changedPixels < WIDTH * HEIGHT / 2,
+            incremental.changedPixels + " pixels traced again");
+
+        Scene edited = new Scene("default_scene.txt");
+        edit.apply(edited);
+        edited.takeChanges();
+        RayTracer full = renderer(edited);
+        assertTrue(full.renderProgressively());
+        assertArrayEquals(full.getFrame(), incremental.getFrame());
+    }
+
+    private static RayTracer renderer(Scene scene) {
+        Input input = new Input(new Config());
+        input.newSize = new Dimension(WIDTH, HEIGHT);
+        RayTracer rayTracer = new RayTracer(scene, input.newSize, input);
+        rayTracer.update();
+        return rayTracer;
+    }
+}
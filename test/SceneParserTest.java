@@ -0,0 +1,79 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+// Errors in scene files must name the line they are on, counting blank lines too.
+class SceneParserTest {
+    @Test
+    void errorAfterBlankLinesNamesItsLine() throws Exception {
+        assertError("Line 7: Expected a number!",
+            "camera:\n" +
+            "    position: (0, 0, 0)\n" +
+            "\n" +
+            "  \n" +
+            "\n" +
+            "sphere:\n" +
+            "    radius: x\n");
+    }
+
+    @Test
+    void windowsLineBreaksCountOnce() throws Exception {
+        assertError("Line 5: Expected a number!",
+            "camera:\r\n" +
+            "    position: (0, 0, 0)\r\n" +
+            "\r\n" +
+            "sphere:\r\n" +
+            "    radius: x\r\n");
+    }
+
+    @Test
+    void missingKeyframeFieldsNameTheSection() throws Exception {
+        final File file = write(
+            "animation:\n" +
+            "    frames: 10\n" +
+            "\n" +
+            "entity:\n" +
+            "    frame: 3\n" +
+            "\n" +
+            "camera:\n" +
+            "    frame: 0\n");
+        ParsingException e = assertThrows(ParsingException.class, new Executable() {
+            @Override
+            public void execute() throws Throwable {
+                new Animation(new Scene("default_scene.txt"), file.getPath());
+            }
+        });
+        assertEquals("Line 4: Entity keyframes need an index and a position!", e.getMessage());
+    }
+
+    @Test
+    void bareHexPrefixIsRejected() throws Exception {
+        assertError("Line 3: Expected a hex colour!",
+            "light:\n" +
+            "    position: (0, 0, 0)\n" +
+            "    color: 0x\n");
+    }
+
+    private static void assertError(String message, String text) throws Exception {
+        final File file = write(text);
+        ParsingException e = assertThrows(ParsingException.class, new Executable() {
+            @Override
+            public void execute() throws Throwable {
+                new Scene(file.getPath());
+            }
+        });
+        assertEquals(message, e.getMessage());
+    }
+
+    private static File write(String text) throws Exception {
+        File file = File.createTempFile("scene", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}